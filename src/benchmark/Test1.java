@@ -17,6 +17,11 @@ import mcast.lrm.LableRoutingMulticast;
  * performing a chained or ring multicast. 
  *
  * The destinations can also be sorted to make the whole thing SMP/cluster aware. 
+ * 
+ * To compare cut-through forwarding with the default store-and-forward, run it
+ * on all machines with -Dlrmc.cutThrough=<piece size in bytes>. Similarly, 
+ * -Dlrmc.coalesce=<bytes> coalesces the fragments forwarded to the same
+ * machine into larger messages.
  *  
  * @author Jason Maassen
  * @version 1.0 May 9, 2006
@@ -49,7 +54,11 @@ public class Test1 extends TestBase implements MessageReceiver {
      
             waitForEnoughMachines();
             
-            System.err.println("Starting test");
+            String piece = ibis.properties().getProperty("lrmc.cutThrough");
+            
+            System.err.println("Starting test (" + (piece == null 
+                    || piece.equals("0") ? "store-and-forward" 
+                    : "cut-through, " + piece + " byte pieces") + ")");
     
             data = new byte[size];
                        
@@ -0,0 +1,451 @@
+package benchmark;
+
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.Location;
+import ibis.ipl.MessageUpcall;
+import ibis.ipl.ReadMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Properties;
+
+import mcast.lrm.LableRoutingMulticast;
+import mcast.lrm.Message;
+import mcast.lrm.MessageCache;
+import mcast.lrm.MessageReceiver;
+
+/**
+ * This test checks that the upcall of the LableRoutingMulticast never blocks
+ * when it cannot forward as fast as it receives. It does not need an Ibis:
+ * three LableRoutingMulticasts run in one JVM, on top of a minimal Ibis that
+ * hands every message to the upcall of its target right away.
+ *
+ * The first machine multicasts many small messages through a chain of the
+ * other two, and the last machine in the chain is slow to take them. The
+ * machine in the middle then cannot forward as fast as it receives, so its
+ * send queue fills up and spills. Its upcall must still return right away
+ * every time, and the last machine must get all messages, in order.
+ *
+ * Run it with -credits <n> to check that flow control keeps the spill list of
+ * the forwarder within the credits of its incoming connection, without
+ * blocking its upcall.
+ */
+public class Test10 {
+
+    private static int queueSize = 4;
+    private static int count = 20000;
+    private static int size = 1024;
+    private static int credits = 0;
+
+    // The last machine sleeps SLEEP ms every PAUSE messages.
+    private static final int PAUSE = 5000;
+    private static final long SLEEP = 500;
+
+    // The longest an upcall may take before we consider it blocked.
+    private static final long MAX_UPCALL = 200;
+
+    private static boolean failed = false;
+
+    private static synchronized void fail(String message) {
+        System.err.println("FAILED: " + message);
+        failed = true;
+    }
+
+    // Returns the default result of a method we do not need.
+    private static Object none(Method m) {
+
+        Class<?> type = m.getReturnType();
+
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return new Integer(0);
+        } else if (type == long.class) {
+            return new Long(0);
+        }
+
+        return null;
+    }
+
+    private static Object proxy(Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(Test10.class.getClassLoader(),
+                new Class [] { type }, handler);
+    }
+
+    // Handles the methods of Object, and ignores all others.
+    private static class Handler implements InvocationHandler {
+
+        private final String name;
+
+        Handler(String name) {
+            this.name = name;
+        }
+
+        Object handle(Object proxy, String method, Object [] args)
+                throws Exception {
+            return this;
+        }
+
+        public Object invoke(Object proxy, Method m, Object [] args)
+                throws Throwable {
+
+            String method = m.getName();
+
+            if (method.equals("equals")) {
+                return Boolean.valueOf(proxy == args[0]);
+            } else if (method.equals("hashCode")) {
+                return new Integer(System.identityHashCode(proxy));
+            } else if (method.equals("toString")) {
+                return name;
+            } else if (method.equals("compareTo")) {
+                return new Integer(name.compareTo(args[0].toString()));
+            }
+
+            Object result = handle(proxy, method, args);
+
+            return result == this ? none(m) : result;
+        }
+    }
+
+    private static class Machine implements MessageReceiver {
+
+        final String name;
+        final boolean slow;
+
+        final IbisIdentifier identifier;
+
+        // The upcall of the receive port, and the lock that makes sure only
+        // one upcall runs at a time, like in Ibis.
+        MessageUpcall upcall;
+        final Object upcallLock = new Object();
+
+        LableRoutingMulticast lrmc;
+
+        long maxUpcall = 0;
+        int received = 0;
+
+        Machine(String name, boolean slow) {
+            this.name = name;
+            this.slow = slow;
+
+            final Location cluster = (Location) proxy(Location.class,
+                    new Handler("cluster"));
+
+            final Location host = (Location) proxy(Location.class,
+                    new Handler(name + "@cluster") {
+                Object handle(Object proxy, String method, Object [] args) {
+                    if (method.equals("getParent")) {
+                        return cluster;
+                    }
+                    return this;
+                }
+            });
+
+            identifier = (IbisIdentifier) proxy(IbisIdentifier.class,
+                    new Handler(name) {
+                Object handle(Object proxy, String method, Object [] args) {
+                    if (method.equals("location")) {
+                        return host;
+                    }
+                    return this;
+                }
+            });
+        }
+
+        void init(final Machine [] machines) throws Exception {
+
+            final Properties properties = new Properties();
+            properties.setProperty("lrmc.queueSize", "" + queueSize);
+            properties.setProperty("lrmc.credits", "" + credits);
+
+            ibis.ipl.Ibis ibis = (ibis.ipl.Ibis) proxy(ibis.ipl.Ibis.class,
+                    new Handler("ibis-" + name) {
+                Object handle(Object proxy, String method, Object [] args) {
+                    if (method.equals("properties")) {
+                        return properties;
+                    } else if (method.equals("identifier")) {
+                        return identifier;
+                    } else if (method.equals("createReceivePort")) {
+                        upcall = (MessageUpcall) args[2];
+                        return proxy(ibis.ipl.ReceivePort.class,
+                                new Handler("port-" + name));
+                    } else if (method.equals("createSendPort")) {
+                        return sendPort(Machine.this, machines);
+                    } else if (method.equals("registry")) {
+                        return proxy(ibis.ipl.Registry.class,
+                                new Handler("registry-" + name));
+                    }
+                    return this;
+                }
+            });
+
+            lrmc = new LableRoutingMulticast(ibis, this,
+                    new MessageCache(1000, size), "test");
+
+            for (int i=0;i<machines.length;i++) {
+                lrmc.addIbis(machines[i].identifier);
+            }
+        }
+
+        // Called by the machine that sends to us, like a message upcall.
+        void deliver(Machine from, byte [] data) throws Exception {
+
+            synchronized (upcallLock) {
+                long start = System.currentTimeMillis();
+
+                upcall.upcall(readMessage(from, data));
+
+                long time = System.currentTimeMillis() - start;
+
+                if (time > maxUpcall) {
+                    maxUpcall = time;
+                }
+            }
+        }
+
+        public synchronized boolean gotMessage(Message m) {
+
+            if (m.num != received) {
+                fail(name + " got message " + m.num + " instead of "
+                        + received);
+            }
+
+            received++;
+            notifyAll();
+
+            if (slow && m.num % PAUSE == PAUSE-1) {
+                try {
+                    Thread.sleep(SLEEP);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+
+            return true;
+        }
+
+        public void gotDone(int id) {
+        }
+
+        synchronized void waitFor(int messages, long timeout)
+                throws InterruptedException {
+
+            long deadline = System.currentTimeMillis() + timeout;
+
+            while (received < messages) {
+                long left = deadline - System.currentTimeMillis();
+
+                if (left <= 0) {
+                    return;
+                }
+
+                wait(left);
+            }
+        }
+    }
+
+    private static Object sendPort(final Machine from,
+            final Machine [] machines) {
+
+        return proxy(ibis.ipl.SendPort.class, new Handler("to-" + from.name) {
+
+            Machine target;
+
+            Object handle(Object proxy, String method, Object [] args) {
+                if (method.equals("connect")) {
+                    for (int i=0;i<machines.length;i++) {
+                        if (machines[i].identifier == args[0]) {
+                            target = machines[i];
+                        }
+                    }
+                } else if (method.equals("newMessage")) {
+                    return writeMessage(from, target);
+                }
+                return this;
+            }
+        });
+    }
+
+    private static Object writeMessage(final Machine from,
+            final Machine target) {
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        return proxy(ibis.ipl.WriteMessage.class, new Handler("message") {
+            Object handle(Object proxy, String method, Object [] args)
+                    throws Exception {
+                if (method.equals("writeInt")) {
+                    out.writeInt(((Integer) args[0]).intValue());
+                } else if (method.equals("writeLong")) {
+                    out.writeLong(((Long) args[0]).longValue());
+                } else if (method.equals("writeFloat")) {
+                    out.writeFloat(((Float) args[0]).floatValue());
+                } else if (method.equals("writeArray")) {
+                    if (args[0] instanceof int []) {
+                        int [] a = (int []) args[0];
+
+                        for (int i=0;i<a.length;i++) {
+                            out.writeInt(a[i]);
+                        }
+                    } else if (args.length == 1) {
+                        out.write((byte []) args[0]);
+                    } else {
+                        out.write((byte []) args[0],
+                                ((Integer) args[1]).intValue(),
+                                ((Integer) args[2]).intValue());
+                    }
+                } else if (method.equals("finish")) {
+                    if (args == null) {
+                        target.deliver(from, bytes.toByteArray());
+                    }
+                    return new Long(bytes.size());
+                }
+                return this;
+            }
+        });
+    }
+
+    private static ReadMessage readMessage(final Machine from,
+            byte [] data) {
+
+        final DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(data));
+
+        final Object origin = proxy(ibis.ipl.SendPortIdentifier.class,
+                new Handler("from-" + from.name) {
+            Object handle(Object proxy, String method, Object [] args) {
+                if (method.equals("ibisIdentifier")) {
+                    return from.identifier;
+                }
+                return this;
+            }
+        });
+
+        return (ReadMessage) proxy(ReadMessage.class, new Handler("message") {
+            Object handle(Object proxy, String method, Object [] args)
+                    throws Exception {
+                if (method.equals("readInt")) {
+                    return new Integer(in.readInt());
+                } else if (method.equals("readLong")) {
+                    return new Long(in.readLong());
+                } else if (method.equals("readFloat")) {
+                    return new Float(in.readFloat());
+                } else if (method.equals("readArray")) {
+                    if (args[0] instanceof int []) {
+                        int [] a = (int []) args[0];
+
+                        for (int i=0;i<a.length;i++) {
+                            a[i] = in.readInt();
+                        }
+                    } else if (args.length == 1) {
+                        in.readFully((byte []) args[0]);
+                    } else {
+                        in.readFully((byte []) args[0],
+                                ((Integer) args[1]).intValue(),
+                                ((Integer) args[2]).intValue());
+                    }
+                } else if (method.equals("origin")) {
+                    return origin;
+                }
+                return this;
+            }
+        });
+    }
+
+    public static void main(String [] args) {
+
+        for (int i=0;i<args.length;i++) {
+            if (args[i].equals("-queue")) {
+                queueSize = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-count")) {
+                count = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-size")) {
+                size = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-credits")) {
+                credits = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        Machine [] machines = new Machine [] {
+                new Machine("sender", false),
+                new Machine("forwarder", false),
+                new Machine("receiver", true) };
+
+        try {
+            for (int i=0;i<machines.length;i++) {
+                machines[i].init(machines);
+            }
+
+            Machine sender = machines[0];
+            Machine forwarder = machines[1];
+            Machine receiver = machines[2];
+
+            sender.lrmc.setDestination(new IbisIdentifier [] {
+                    forwarder.identifier, receiver.identifier });
+
+            byte [] data = new byte[size];
+
+            long start = System.currentTimeMillis();
+
+            for (int i=0;i<count;i++) {
+                sender.lrmc.send(0, i, data, 0, data.length);
+            }
+
+            long end = System.currentTimeMillis();
+
+            receiver.waitFor(count, 60000);
+
+            System.out.println("Sending " + count + " messages took "
+                    + (end-start) + " ms, forwarder spilled "
+                    + forwarder.lrmc.getSpilled() + ", at most "
+                    + forwarder.lrmc.getMaxSpillSize() + " at a time, "
+                    + "longest upcall " + forwarder.maxUpcall + " ms");
+
+            for (int i=1;i<machines.length;i++) {
+                if (machines[i].received != count) {
+                    fail(machines[i].name + " received "
+                            + machines[i].received + " messages instead of "
+                            + count);
+                }
+            }
+
+            if (forwarder.lrmc.getSpilled() == 0) {
+                fail("the forwarder never spilled, so nothing was tested");
+            }
+
+            if (credits > 0
+                    && forwarder.lrmc.getMaxSpillSize() > credits) {
+                fail("the forwarder spilled more than the " + credits
+                        + " credits of its incoming connection");
+            }
+
+            if (forwarder.maxUpcall > MAX_UPCALL) {
+                fail("an upcall of the forwarder took "
+                        + forwarder.maxUpcall + " ms");
+            }
+
+            for (int i=0;i<machines.length;i++) {
+                machines[i].lrmc.done();
+            }
+        } catch (Exception e) {
+            System.err.println("Oops: " + e);
+            e.printStackTrace(System.err);
+            failed = true;
+        }
+
+        if (failed) {
+            System.exit(1);
+        }
+
+        System.out.println("OK");
+    }
+}
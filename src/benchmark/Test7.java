@@ -0,0 +1,170 @@
+package benchmark;
+
+import mcast.lrm.Message;
+import mcast.lrm.MessageQueue;
+
+/**
+ * This test checks that the send queue of the LableRoutingMulticast never
+ * blocks the receive path when it is full. It does not need an Ibis. Test10
+ * checks the same through the upcall of the LableRoutingMulticast.
+ *
+ * First a single 'upcall' thread offers many more messages than the queue can
+ * hold while nobody is dequeueing. Every offer must return, and the messages
+ * must come out in order once the consumer starts. Next, several 'upcall' 
+ * threads offer messages to a slow consumer at the same time, and the order 
+ * of the messages of each thread is checked.
+ */
+public class Test7 {
+
+    private static int queueSize = 32;
+    private static int count = 100000;
+    private static int producers = 4;
+
+    private static boolean failed = false;
+
+    private static synchronized void fail(String message) {
+        System.err.println("FAILED: " + message);
+        failed = true;
+    }
+
+    private static Message message(int sender, int num) {
+        Message m = new Message(0);
+        m.sender = sender;
+        m.num = num;
+        return m;
+    }
+
+    private static void fillTest() throws InterruptedException {
+
+        final MessageQueue queue = new MessageQueue(queueSize);
+        final long [] maxTime = new long[1];
+
+        Thread upcall = new Thread("upcall") {
+            public void run() {
+                for (int i=0;i<count;i++) {
+                    long start = System.nanoTime();
+                    queue.offer(message(0, i));
+                    long time = System.nanoTime() - start;
+
+                    if (time > maxTime[0]) {
+                        maxTime[0] = time;
+                    }
+                }
+            }
+        };
+
+        upcall.start();
+        upcall.join(10000);
+
+        if (upcall.isAlive()) {
+            fail("upcall blocked on a full queue");
+            queue.terminate();
+            return;
+        }
+
+        System.out.println("Offered " + count + " messages to a queue of "
+                + queueSize + ", " + queue.getSpilled() + " spilled, max "
+                + "offer time " + (maxTime[0] / 1000) + " usec");
+
+        if (queue.size() != count) {
+            fail("queue holds " + queue.size() + " messages instead of "
+                    + count);
+        }
+
+        for (int i=0;i<count;i++) {
+            Message m = queue.dequeue();
+
+            if (m.num != i) {
+                fail("got message " + m.num + " instead of " + i);
+                break;
+            }
+        }
+
+        queue.terminate();
+    }
+
+    private static void concurrentTest() throws InterruptedException {
+
+        final MessageQueue queue = new MessageQueue(queueSize);
+
+        Thread [] upcalls = new Thread[producers];
+
+        for (int p=0;p<producers;p++) {
+            final int sender = p;
+
+            upcalls[p] = new Thread("upcall-" + p) {
+                public void run() {
+                    for (int i=0;i<count;i++) {
+                        queue.offer(message(sender, i));
+                    }
+                }
+            };
+            upcalls[p].start();
+        }
+
+        int [] next = new int[producers];
+
+        for (int i=0;i<producers*count;i++) {
+            Message m = queue.dequeue();
+
+            if (m.num != next[m.sender]) {
+                fail("got message " + m.num + " from " + m.sender
+                        + " instead of " + next[m.sender]);
+                break;
+            }
+
+            next[m.sender]++;
+
+            if (i % 1000 == 0) {
+                // A slow consumer makes the queue fill up.
+                Thread.sleep(1);
+            }
+        }
+
+        for (int p=0;p<producers;p++) {
+            upcalls[p].join(10000);
+
+            if (upcalls[p].isAlive()) {
+                fail("upcall " + p + " blocked");
+            }
+        }
+
+        System.out.println("Offered " + producers + "x" + count
+                + " messages concurrently, " + queue.getSpilled()
+                + " spilled, at most " + queue.getMaxSpillSize()
+                + " at a time");
+
+        queue.terminate();
+    }
+
+    public static void main(String [] args) {
+
+        for (int i=0;i<args.length;i++) {
+            if (args[i].equals("-queue")) {
+                queueSize = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-count")) {
+                count = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-producers")) {
+                producers = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        try {
+            fillTest();
+            concurrentTest();
+        } catch (Exception e) {
+            System.err.println("Oops: " + e);
+            e.printStackTrace(System.err);
+            failed = true;
+        }
+
+        if (failed) {
+            System.exit(1);
+        }
+
+        System.out.println("OK");
+    }
+}
@@ -0,0 +1,167 @@
+package benchmark;
+
+import ibis.ipl.IbisIdentifier;
+
+import java.io.IOException;
+
+import mcast.lrm.Message;
+import mcast.lrm.MessageCache;
+import mcast.lrm.MessageReceiver;
+import mcast.lrm.LableRoutingMulticast;
+
+/**
+ * This test checks the send queue of the LableRoutingMulticast through the
+ * real forwarding and upcall path. A single sender multicasts many small
+ * messages through a chain of at least three machines, and the last machine in
+ * the chain is slow to take them. The machines before it can then not forward
+ * as fast as they receive, so their send queues fill up and spill.
+ *
+ * Every machine checks that it gets all messages, in order, and prints how
+ * many messages it spilled. Run it with -Dlrmc.credits=<n> to see flow
+ * control keep the spill list short.
+ */
+public class Test8 extends TestBase implements MessageReceiver {
+
+    // The last machine sleeps 1 ms every PAUSE messages.
+    private static final int PAUSE = 100;
+
+    private int receivedMessages = 0;
+    private int expected = 0;
+    private boolean slow = false;
+    private boolean failed = false;
+
+    private LableRoutingMulticast lrmcast;
+
+    private MessageCache cache;
+
+    private Test8() throws IOException, ClassNotFoundException {
+        super();
+    }
+
+    public void init() throws IOException {
+        cache = new MessageCache(cacheSize, 8*1024);
+        lrmcast = new LableRoutingMulticast(ibis, this, cache, "test");
+    }
+
+    private void start() throws IOException {
+
+        waitForMaster();
+        waitForEnoughMachines();
+
+        synchronized (this) {
+            // The machine that joined last is the end of the chain.
+            slow = participants.get(minMachines-1).equals(ibis.identifier());
+        }
+
+        if (masterID.equals(ibis.identifier())) {
+            runTest();
+        } else {
+            // Wait for the master to leave (means the application is done)
+            waitForMasterToLeave();
+        }
+
+        synchronized (this) {
+            if (!masterID.equals(ibis.identifier())
+                    && receivedMessages != count) {
+                System.out.println("FAILED: received " + receivedMessages
+                        + " messages instead of " + count);
+                failed = true;
+            }
+        }
+
+        System.out.println("Machine " + ibis.identifier() + " received "
+                + receivedMessages + " messages, " + lrmcast.getSpilled()
+                + " spilled, at most " + lrmcast.getMaxSpillSize()
+                + " at a time" + (slow ? " (slow)" : ""));
+
+        lrmcast.done();
+
+        done();
+
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    public void gotDone(int id) {
+    }
+
+    private void runTest() {
+
+        if (minMachines < 3) {
+            System.out.println("Need at least 3 machines to forward anything");
+        }
+
+        byte [] data = new byte[size];
+
+        IbisIdentifier [] ids = getParticipants(false);
+
+        System.out.println("Running test with " + ids.length + " machines.");
+        lrmcast.setDestination(ids);
+
+        long start = System.currentTimeMillis();
+
+        for (int i=0;i<count;i++) {
+            lrmcast.send(0, i, data, 0, data.length);
+        }
+
+        long end = System.currentTimeMillis();
+
+        System.out.println("Sending " + count + " messages took "
+                + (end-start) + " ms.");
+    }
+
+    public boolean gotMessage(Message b) {
+
+        int num = b.num;
+
+        cache.put(b);
+
+        synchronized (this) {
+            if (num != expected) {
+                System.out.println("FAILED: got message " + num
+                        + " instead of " + expected);
+                failed = true;
+            }
+
+            expected = num+1;
+            receivedMessages++;
+        }
+
+        if (slow && num % PAUSE == 0) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+
+        return true;
+    }
+
+    public void addIbis(IbisIdentifier id) {
+        lrmcast.addIbis(id);
+    }
+
+    public void removeIbis(IbisIdentifier id) {
+        lrmcast.removeIbis(id);
+    }
+
+    public static void main(String [] args) {
+
+        // Small messages, so they are forwarded one by one.
+        size = 1024;
+        count = 100000;
+        minMachines = 3;
+
+        parseOptions(args);
+
+        try {
+            new Test8().start();
+        } catch (Exception e) {
+            System.err.println("Oops: " + e);
+            e.printStackTrace(System.err);
+            System.exit(1);
+        }
+    }
+}
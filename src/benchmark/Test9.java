@@ -0,0 +1,267 @@
+package benchmark;
+
+import ibis.io.BufferedArrayOutputStream;
+import ibis.io.SerializationFactory;
+import ibis.io.SerializationOutput;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import mcast.lrm.Message;
+import mcast.lrm.MessageCache;
+import mcast.object.Inputstreams;
+import mcast.object.LRMCInputStream;
+import mcast.object.ObjectReceiver;
+
+/**
+ * This test checks the receive side of the ObjectMulticaster when the senders
+ * batch several objects into a single multicast. It does not need an Ibis.
+ *
+ * Two senders each multicast a number of batches, and the fragments of the
+ * two senders are handed to the input streams interleaved, the way the
+ * upcall would. The objects are then read the way the ObjectMulticaster does,
+ * both from the upcall (signal mode) and from a separate receiver thread.
+ * Every object must be read exactly once, from the right sender, and in
+ * order.
+ */
+public class Test9 {
+
+    private static int senders = 2;
+    private static int batches = 100;
+    private static int objects = 10;
+    private static int fragmentSize = 1000;
+
+    private static boolean failed = false;
+
+    private static synchronized void fail(String message) {
+        System.err.println("FAILED: " + message);
+        failed = true;
+    }
+
+    // The objects sent. Some of them are larger than a fragment, so batches
+    // mix objects that end in the middle of a fragment with objects that
+    // span several fragments.
+    private static Object object(int sender, int batch, int index) {
+        int [] data = new int[2 + (batch * objects + index) % 500];
+
+        data[0] = sender;
+        data[1] = batch * objects + index;
+
+        for (int i=2;i<data.length;i++) {
+            data[i] = i;
+        }
+
+        return data;
+    }
+
+    // Serializes a batch of objects the way the ObjectMulticaster does, and
+    // cuts it into fragments.
+    private static ArrayList<Message> batch(int sender, int batch)
+            throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BufferedArrayOutputStream bout = new BufferedArrayOutputStream(bytes,
+                4096);
+        SerializationOutput sout
+                = SerializationFactory.createSerializationOutput("ibis", bout);
+
+        for (int i=0;i<objects;i++) {
+            sout.reset(true);
+            sout.writeObject(object(sender, batch, i));
+            sout.flush();
+        }
+
+        byte [] data = bytes.toByteArray();
+
+        ArrayList<Message> result = new ArrayList<Message>();
+
+        for (int off=0;off<data.length;off+=fragmentSize) {
+            int len = Math.min(fragmentSize, data.length - off);
+
+            Message m = new Message(len);
+            m.sender = sender;
+            m.id = batch+1;
+            m.num = result.size();
+            m.off = m.base;
+            m.len = len;
+            m.last = off + len == data.length;
+
+            System.arraycopy(data, off, m.buffer, m.off, len);
+            result.add(m);
+        }
+
+        return result;
+    }
+
+    // Returns the fragments of all senders, with those of different senders
+    // interleaved.
+    private static ArrayList<Message> fragments() throws IOException {
+
+        ArrayList<ArrayList<Message>> todo = new ArrayList<ArrayList<Message>>();
+
+        for (int s=0;s<senders;s++) {
+            ArrayList<Message> tmp = new ArrayList<Message>();
+
+            for (int b=0;b<batches;b++) {
+                tmp.addAll(batch(s, b));
+            }
+
+            todo.add(tmp);
+        }
+
+        ArrayList<Message> result = new ArrayList<Message>();
+        boolean more = true;
+
+        while (more) {
+            more = false;
+
+            for (int s=0;s<senders;s++) {
+                if (todo.get(s).size() > 0) {
+                    result.add(todo.get(s).remove(0));
+                    more = true;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static void check(Object o, int [] next) {
+
+        int [] tmp = (int []) o;
+
+        int sender = tmp[0];
+        int index = tmp[1];
+
+        if (index != next[sender]) {
+            fail("got object " + index + " from " + sender + " instead of "
+                    + next[sender]);
+        }
+
+        next[sender] = index+1;
+    }
+
+    private static void finish(String test, int [] next) {
+
+        for (int s=0;s<senders;s++) {
+            if (next[s] != batches * objects) {
+                fail(test + ": read " + next[s] + " objects from " + s
+                        + " instead of " + (batches * objects));
+            }
+        }
+
+        System.out.println(test + ": read " + (senders * batches * objects)
+                + " objects from " + senders + " senders");
+    }
+
+    // Reads the objects from the upcall, like ObjectMulticaster.haveObject.
+    private static void upcallTest() throws IOException {
+
+        final MessageCache cache = new MessageCache(100, fragmentSize);
+        final int [] next = new int[senders];
+
+        final Inputstreams inputStreams = new Inputstreams();
+
+        ObjectReceiver receiver = new ObjectReceiver() {
+            public void haveObject(LRMCInputStream stream) {
+                while (stream.haveCompleteObject()) {
+                    try {
+                        check(stream.readObject(), next);
+                    } catch (Exception e) {
+                        fail("cannot read object from " + stream.getSource()
+                                + ": " + e);
+                    } finally {
+                        inputStreams.returnStream(stream);
+                    }
+                }
+            }
+        };
+
+        for (Message m : fragments()) {
+            inputStreams.hasData(inputStreams.get(m.sender, cache, receiver), m);
+        }
+
+        inputStreams.terminate();
+
+        finish("upcall", next);
+    }
+
+    // Reads the objects from a receiver thread, like
+    // ObjectMulticaster.explicitReceive.
+    private static void receiverTest() throws Exception {
+
+        final MessageCache cache = new MessageCache(100, fragmentSize);
+        final int [] next = new int[senders];
+
+        final Inputstreams inputStreams = new Inputstreams();
+
+        Thread reader = new Thread("receiver") {
+            public void run() {
+                for (int i=0;i<senders * batches * objects;i++) {
+                    LRMCInputStream stream = inputStreams.getNextFilledStream();
+
+                    if (stream == null) {
+                        return;
+                    }
+
+                    try {
+                        check(stream.readObject(), next);
+                    } catch (Exception e) {
+                        fail("cannot read object from " + stream.getSource()
+                                + ": " + e);
+                    } finally {
+                        inputStreams.returnStream(stream);
+                    }
+                }
+            }
+        };
+
+        reader.start();
+
+        for (Message m : fragments()) {
+            inputStreams.hasData(inputStreams.get(m.sender, cache, null), m);
+        }
+
+        reader.join(10000);
+
+        if (reader.isAlive()) {
+            fail("receiver is still waiting for objects");
+        }
+
+        inputStreams.terminate();
+
+        finish("receiver", next);
+    }
+
+    public static void main(String [] args) {
+
+        for (int i=0;i<args.length;i++) {
+            if (args[i].equals("-batches")) {
+                batches = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-objects")) {
+                objects = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-fragment")) {
+                fragmentSize = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        try {
+            upcallTest();
+            receiverTest();
+        } catch (Exception e) {
+            System.err.println("Oops: " + e);
+            e.printStackTrace(System.err);
+            System.exit(1);
+        }
+
+        if (failed) {
+            System.exit(1);
+        }
+
+        System.out.println("OK");
+    }
+}
@@ -0,0 +1,1186 @@
+package mcast.lrm;
+
+import ibis.ipl.ReadMessage;
+import ibis.ipl.SendPort;
+import ibis.ipl.WriteMessage;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The connection to a single destination.
+ *
+ * A connection is set up asynchronously by the ConnectionManager. Fragments
+ * that are sent while the connection is being set up are queued here and
+ * written (in order) as soon as the connection is available. If the setup
+ * fails, the queued fragments are handed back to the LableRoutingMulticast,
+ * which forwards them to the next destination on their route. This way, a
+ * slow or dead destination only stalls the fragments that are routed to it.
+ *
+ * If the connection manager has CREDITS, each fragment written uses up a
+ * credit. The destination returns the credit once it has taken the fragment
+ * into its send queue (see MessageQueue), so a credit stands for a free slot
+ * in that queue, not for a fragment that was forwarded. Fragments that find
+ * the send queue full are spilled, and only return their credit when they
+ * get a slot, which holds back the nodes upstream. A thread that sends a
+ * fragment while we have no credit (the local application, or the thread
+ * that forwards the fragments we receive) blocks until a credit comes in or
+ * the connection fails. Note that nodes whose routes form a cycle may still
+ * stall each other this way, if all their send queues are full at once.
+ *
+ * If the connection manager has a RETRANSMIT buffer, the last RETRANSMIT
+ * fragments written are kept. If the destination dies, these fragments are
+ * forwarded again to the next destination on their routes, together with the
+ * ones still queued, so the fragments the dead destination did not forward
+ * are not lost. The receivers drop the fragments they already have.
+ *
+ * A connection that could not be set up, or whose destination died, acts as
+ * an open circuit breaker: fragments routed to it skip it right away. After a
+ * backoff, a single probe tries to set up the connection in the background
+ * (the breaker is half open). If it succeeds, the breaker is closed and the
+ * connection is used again. Otherwise the breaker opens again, and the backoff
+ * is doubled.
+ *
+ * If the connection manager has a COALESCE budget, fragments written one
+ * after the other share a single WriteMessage, until it holds COALESCE bytes
+ * or it is flushed (see LableRoutingMulticast.run). Any other message we
+ * write finishes it first.
+ */
+final class Connection {
+
+    private static final Logger logger = Logger.getLogger(Connection.class);
+
+    // The connection states.
+    static final int IDLE = 0;
+    static final int CONNECTING = 1;
+    static final int CONNECTED = 2;
+    static final int FAILED = 3;
+    static final int PROBING = 4;
+
+    // The possible results of a send.
+    static final int SENT = 0;
+    static final int QUEUED = 1;
+    static final int UNREACHABLE = 2;
+
+    // A fragment (or DONE message) waiting for the connection to be set up.
+    static final class Pending {
+
+        final Message message;
+        final int from;
+        final int to;
+        final boolean silent;
+        final int doneTarget;
+        final int done;
+        final int [] doneRanges;
+
+        Pending next;
+
+        Pending(Message message, int from, int to, boolean silent,
+                int doneTarget, int done, int [] doneRanges) {
+            this.message = message;
+            this.from = from;
+            this.to = to;
+            this.silent = silent;
+            this.doneTarget = doneTarget;
+            this.done = done;
+            this.doneRanges = doneRanges;
+        }
+    }
+
+    final int id;
+
+    private final ConnectionManager manager;
+
+    private int state = IDLE;
+
+    // The number of times in a row we failed to reach the destination.
+    private int failures = 0;
+
+    // Set when the destination has left, so we should not probe it.
+    private boolean removed = false;
+
+    private SendPort sendport;
+    private FutureTask<SendPort> future;
+
+    // The routes installed at the other side of this connection.
+    private RouteTable installed;
+
+    private Pending head;
+    private Pending tail;
+
+    // The credits we have for writing fragments to our destination, and the
+    // credits we owe our destination for fragments it sent us. The latter are
+    // returned without taking our lock (see returnCredit).
+    private int credits;
+    private final AtomicInteger creditsOwed = new AtomicInteger(0);
+
+    private final Runnable creditWriter = new Runnable() {
+        public void run() {
+            writeCredits();
+        }
+    };
+
+    // The DONE messages collected so far, as (target, first ID, last ID)
+    // triples.
+    private int [] doneRanges;
+    private int doneSize = 0;
+    private int doneCount = 0;
+
+    // The fragments written most recently, oldest first, if the connection
+    // manager has a RETRANSMIT buffer.
+    private Pending [] written;
+    private int writtenHead = 0;
+    private int writtenCount = 0;
+
+    // The message the fragments are coalesced in, if any, and the number of
+    // bytes of fragments written to it. Their buffers may not be reused
+    // until it is finished, so we hold on to the fragments until then.
+    private WriteMessage batch;
+    private int batchBytes = 0;
+    private Message [] batched;
+    private int batchedCount = 0;
+
+    // The first fragment (batched[0]) is only written once a second one
+    // follows, since a single fragment is written on its own, in the usual
+    // format. Until then, we keep the destinations it carries.
+    private int firstFrom;
+    private int firstTo;
+    private boolean firstSilent;
+    private boolean firstInstall;
+
+    Connection(ConnectionManager manager, int id) {
+        this.manager = manager;
+        this.id = id;
+    }
+
+    synchronized int getState() {
+        return state;
+    }
+
+    /**
+     * Starts setting up this connection if this has not been done yet.
+     *
+     * @return a future that completes when the connection is available
+     */
+    synchronized Future<SendPort> connect() {
+
+        // Note that a failed connection is only set up again by a probe, so a
+        // sender that insists on a dead destination does not make every
+        // fragment wait for a connection setup.
+        if (state == IDLE) {
+            state = CONNECTING;
+            start();
+        }
+
+        return future;
+    }
+
+    private void start() {
+
+        future = new FutureTask<SendPort>(new Callable<SendPort>() {
+            public SendPort call() throws IOException {
+                return setup();
+            }
+        });
+
+        manager.execute(future);
+    }
+
+    /**
+     * Called when the backoff of the open breaker has passed. Tries to set up
+     * the connection in the background.
+     */
+    synchronized void probe() {
+
+        if (state != FAILED || removed) {
+            return;
+        }
+
+        logger.info("Probing " + id + " after " + failures + " failures");
+        state = PROBING;
+        start();
+    }
+
+    // Opens the breaker, and schedules a probe. Returns true if the breaker
+    // was closed (as opposed to a probe that failed).
+    private boolean trip() {
+
+        boolean tripped = (state != PROBING);
+
+        state = FAILED;
+        failures++;
+
+        if (tripped) {
+            manager.addTrip();
+        }
+
+        if (!removed) {
+            manager.scheduleProbe(this, failures);
+        }
+
+        return tripped;
+    }
+
+    private SendPort setup() throws IOException {
+
+        SendPort sp;
+
+        try {
+            sp = manager.createSendPort(id);
+        } catch (IOException e) {
+            logger.info("Failed to connect to " + id + ": " + e);
+            failed();
+            throw e;
+        }
+
+        if (!connected(sp)) {
+            throw new IOException("Destination " + id + " has left");
+        }
+
+        return sp;
+    }
+
+    // Installs the new send port. Returns false if the destination left
+    // while we were connecting, in which case the port is closed again.
+    private boolean connected(SendPort sp) {
+
+        Pending rest;
+
+        synchronized (this) {
+            if (removed) {
+                // The state was set by left(), so leave it alone.
+                try {
+                    sp.close();
+                } catch (Exception e) {
+                    // ignore, we tried...
+                }
+                return false;
+            }
+
+            if (state == PROBING) {
+                logger.info("Connection to " + id + " recovered after "
+                        + failures + " failures");
+                manager.addRecovery();
+            }
+
+            failures = 0;
+            sendport = sp;
+            installed = new RouteTable();
+            credits = manager.CREDITS;
+            state = CONNECTED;
+
+            // Wake up the senders waiting for a credit.
+            notifyAll();
+
+            // Write the fragments that were waiting for us. New ones will queue
+            // up behind them, since we hold the lock.
+            rest = drain();
+
+            if (sendport != null && creditsOwed.get() > 0) {
+                writeCredit();
+            }
+        }
+
+        if (rest != null) {
+            manager.reroute(rest);
+        }
+
+        return true;
+    }
+
+    private boolean hasCredit() {
+        return manager.CREDITS == 0 || credits > 0;
+    }
+
+    // Writes the queued fragments, as far as our credits allow. Returns the
+    // fragments that could not be written since the connection failed.
+    private Pending drain() {
+
+        boolean wrote = false;
+
+        while (head != null && (head.message == null || hasCredit())) {
+            Pending p = head;
+            head = p.next;
+            wrote = true;
+
+            try {
+                write(p);
+            } catch (IOException e) {
+                logger.info("Write to " + id + " failed! ", e);
+                return broken();
+            } finally {
+                manager.release(p.message);
+            }
+        }
+
+        if (head == null) {
+            tail = null;
+        }
+
+        if (wrote) {
+            // No one else will flush what we coalesced.
+            try {
+                manager.addBytes(finishBatch());
+            } catch (IOException e) {
+                logger.info("Write to " + id + " failed! ", e);
+                return broken();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Adds the credits granted by our destination, and writes the fragments
+     * that were waiting for them.
+     */
+    void grant(int n) {
+
+        Pending rest = null;
+
+        synchronized (this) {
+            credits += n;
+
+            if (state == CONNECTED) {
+                rest = drain();
+            }
+
+            notifyAll();
+        }
+
+        if (rest != null) {
+            manager.reroute(rest);
+        }
+    }
+
+    /**
+     * Returns a credit to our destination for a fragment it sent us.
+     *
+     * This is called when the fragment is taken into the send queue, which
+     * may be in the upcall, or while another connection holds its own lock.
+     * So we do not take our lock here, and leave writing the credits to
+     * another thread.
+     */
+    void returnCredit() {
+        if (creditsOwed.incrementAndGet() == manager.CREDIT_BATCH) {
+            manager.execute(creditWriter);
+        }
+    }
+
+    private synchronized void writeCredits() {
+        if (state == CONNECTED) {
+            writeCredit();
+        } else if (state == IDLE) {
+            // The credits are written once we are connected.
+            connect();
+        }
+    }
+
+    // Returns a new message for a control message if we are connected.
+    // Otherwise, we start connecting and return null; the control message is
+    // dropped.
+    private WriteMessage newControlMessage() throws IOException {
+
+        if (state != CONNECTED) {
+            if (state == IDLE) {
+                connect();
+            }
+            return null;
+        }
+
+        return newMessage();
+    }
+
+    // Returns a new message, after finishing the one the fragments are
+    // coalesced in.
+    private WriteMessage newMessage() throws IOException {
+        manager.addBytes(finishBatch());
+        return sendport.newMessage();
+    }
+
+    // Finishes the message the fragments are coalesced in, if any, and
+    // returns the number of bytes written.
+    private long finishBatch() throws IOException {
+
+        if (batchedCount == 0) {
+            return 0;
+        }
+
+        WriteMessage wm = batch;
+        batch = null;
+
+        try {
+            if (wm == null) {
+                // Only a single fragment, so there is no need for a batch.
+                wm = sendport.newMessage();
+                batched[0].write(wm, firstFrom, firstTo, firstSilent,
+                        firstInstall, manager.CUT_THROUGH);
+            } else {
+                wm.writeInt(Message.BATCH);
+            }
+            return wm.finish();
+        } catch (IOException e) {
+            if (wm != null) {
+                wm.finish(e);
+            }
+            throw e;
+        } finally {
+            while (batchedCount > 0) {
+                manager.release(batched[--batchedCount]);
+                batched[batchedCount] = null;
+            }
+        }
+    }
+
+    /**
+     * Writes the fragments coalesced so far.
+     */
+    void flush() {
+
+        Pending rest = null;
+
+        synchronized (this) {
+            try {
+                manager.addBytes(finishBatch());
+            } catch (IOException e) {
+                logger.info("Write to " + id + " failed! ", e);
+                rest = broken();
+            }
+        }
+
+        if (rest != null) {
+            manager.reroute(rest);
+        }
+    }
+
+    synchronized void sendProbe(int seq, long time, byte [] payload, int len) {
+
+        try {
+            WriteMessage wm = newControlMessage();
+
+            if (wm != null) {
+                wm.writeInt(Message.PROBE);
+                wm.writeInt(seq);
+                wm.writeLong(time);
+                wm.writeInt(len);
+                if (len > 0) {
+                    wm.writeArray(payload, 0, len);
+                }
+                wm.finish();
+            }
+        } catch (IOException e) {
+            logger.debug("Writing probe to " + id + " failed");
+            close();
+        }
+    }
+
+    synchronized void sendProbeReply(int seq, long time) {
+
+        try {
+            WriteMessage wm = newControlMessage();
+
+            if (wm != null) {
+                wm.writeInt(Message.PROBE_REPLY);
+                wm.writeInt(seq);
+                wm.writeLong(time);
+                wm.finish();
+            }
+        } catch (IOException e) {
+            logger.debug("Writing probe reply to " + id + " failed");
+            close();
+        }
+    }
+
+    synchronized void sendHeartbeat(int type, long time) {
+
+        try {
+            WriteMessage wm = newControlMessage();
+
+            if (wm != null) {
+                wm.writeInt(type);
+                wm.writeLong(time);
+                wm.finish();
+            }
+        } catch (IOException e) {
+            logger.debug("Writing heartbeat to " + id + " failed");
+            close();
+        }
+    }
+
+    synchronized void sendReport(float capacity, int queued) {
+
+        try {
+            WriteMessage wm = newControlMessage();
+
+            if (wm != null) {
+                wm.writeInt(Message.REPORT);
+                wm.writeFloat(capacity);
+                wm.writeInt(queued);
+                wm.finish();
+            }
+        } catch (IOException e) {
+            logger.debug("Writing report to " + id + " failed");
+            close();
+        }
+    }
+
+    synchronized void sendCosts(int owner, int [] ids, float [] costs) {
+
+        try {
+            WriteMessage wm = newControlMessage();
+
+            if (wm != null) {
+                wm.writeInt(Message.COSTS);
+                wm.writeInt(owner);
+                wm.writeInt(ids.length);
+                wm.writeArray(ids);
+                wm.writeArray(costs);
+                wm.finish();
+            }
+        } catch (IOException e) {
+            logger.debug("Writing costs to " + id + " failed");
+            close();
+        }
+    }
+
+    private void writeCredit() {
+
+        // More credits may be returned while we write. If they add up to
+        // another batch, we write those too, since returnCredit only hands us
+        // the batch it completes.
+        int n = creditsOwed.get();
+
+        while (n > 0) {
+            try {
+                WriteMessage wm = newMessage();
+                wm.writeInt(Message.CREDIT);
+                wm.writeInt(n);
+                wm.finish();
+            } catch (IOException e) {
+                logger.debug("Writing credits to " + id + " failed");
+                close();
+                return;
+            }
+
+            n = creditsOwed.addAndGet(-n);
+
+            if (n < manager.CREDIT_BATCH) {
+                return;
+            }
+        }
+    }
+
+    // Lets a sender wait until we have a credit, or the connection is no
+    // longer usable.
+    private void waitForCredit() throws IOException {
+
+        if (manager.CREDITS == 0 || (head == null && credits > 0)) {
+            return;
+        }
+
+        // The destination only returns credits for what it got, so write
+        // what we coalesced so far.
+        manager.addBytes(finishBatch());
+
+        long start = System.currentTimeMillis();
+        long warn = start + ConnectionManager.CONNECT_TIMEOUT;
+
+        while (state == CONNECTED && (head != null || credits == 0)) {
+            long left = warn - System.currentTimeMillis();
+
+            if (left <= 0) {
+                logger.info("Still waiting for credits from " + id + " after "
+                        + (System.currentTimeMillis() - start) + " ms");
+                warn += ConnectionManager.CONNECT_TIMEOUT;
+                continue;
+            }
+
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                // ignored
+            }
+        }
+
+        manager.addCreditStall(System.currentTimeMillis() - start);
+    }
+
+    private void failed() {
+
+        Pending list;
+        boolean tripped;
+
+        synchronized (this) {
+            tripped = trip();
+            list = resend(head);
+            head = tail = null;
+            notifyAll();
+        }
+
+        // notify the nameserver that this machine may be dead, unless we
+        // already did so when the breaker opened.
+        if (tripped) {
+            manager.maybeDead(id);
+        }
+
+        manager.reroute(list);
+    }
+
+    // Called when a write to the destination failed. Without retransmission,
+    // we simply close the connection, which is set up again when it is used
+    // next. Otherwise, we assume the destination died, and return the
+    // fragments that must be forwarded to someone else.
+    private Pending broken() {
+
+        Pending rest = head;
+        head = tail = null;
+        close();
+
+        if (manager.RETRANSMIT == 0) {
+            return rest;
+        }
+
+        if (trip()) {
+            manager.execute(new Runnable() {
+                public void run() {
+                    manager.maybeDead(id);
+                }
+            });
+        }
+
+        return resend(rest);
+    }
+
+    /**
+     * Called when the destination has left the pool. The fragments it may
+     * not have forwarded yet are forwarded to someone else.
+     */
+    void left() {
+
+        Pending list;
+
+        synchronized (this) {
+            close();
+            removed = true;
+            state = FAILED;
+            list = resend(head);
+            head = tail = null;
+        }
+
+        manager.reroute(list);
+    }
+
+    // Keeps a fragment we have written (or are about to write), in case the
+    // destination dies before forwarding it.
+    private void remember(Message m, int from, int to, boolean silent) {
+
+        if (manager.RETRANSMIT == 0) {
+            return;
+        }
+
+        if (written == null) {
+            written = new Pending[manager.RETRANSMIT];
+        }
+
+        if (writtenCount == written.length) {
+            forget(1);
+        }
+
+        manager.keep(m);
+        written[(writtenHead + writtenCount) % written.length]
+            = new Pending(m, from, to, silent, -1, 0, null);
+        writtenCount++;
+    }
+
+    // Drops the n oldest fragments we kept.
+    private void forget(int n) {
+
+        while (n-- > 0 && writtenCount > 0) {
+            manager.discard(written[writtenHead].message);
+            written[writtenHead] = null;
+            writtenHead = (writtenHead + 1) % written.length;
+            writtenCount--;
+        }
+    }
+
+    // Drops the fragment we kept most recently.
+    private void forgetLast() {
+
+        if (writtenCount == 0) {
+            return;
+        }
+
+        int last = (writtenHead + writtenCount - 1) % written.length;
+        manager.discard(written[last].message);
+        written[last] = null;
+        writtenCount--;
+    }
+
+    // Returns copies of the fragments we kept, followed by the given list.
+    // The copies do not owe anyone a credit, since the originals already
+    // took care of that.
+    private Pending resend(Pending rest) {
+
+        if (writtenCount == 0) {
+            return rest;
+        }
+
+        logger.info("Forwarding " + writtenCount + " fragments sent to " + id
+                + " again");
+
+        manager.addResent(writtenCount);
+
+        Pending first = null;
+        Pending last = null;
+
+        while (writtenCount > 0) {
+            Pending p = written[writtenHead];
+            Pending copy = new Pending(manager.copy(p.message), p.from, p.to,
+                    p.silent, -1, 0, null);
+
+            if (last == null) {
+                first = copy;
+            } else {
+                last.next = copy;
+            }
+
+            last = copy;
+            forget(1);
+        }
+
+        last.next = rest;
+        return first;
+    }
+
+    /**
+     * Called by the failure detector when the destination seems to have
+     * died. The connection is closed and treated as if it could not be set
+     * up: fragments routed to it skip it, and the queued ones are rerouted.
+     */
+    void suspect() {
+
+        synchronized (this) {
+            if (state != CONNECTED) {
+                return;
+            }
+
+            endBatch();
+
+            if (sendport != null) {
+                try {
+                    sendport.close();
+                } catch (Exception e) {
+                    // ignore, we tried...
+                }
+                sendport = null;
+            }
+        }
+
+        failed();
+    }
+
+    /**
+     * Called by the failure detector when a destination it suspected turns
+     * out to be alive after all.
+     */
+    synchronized void revive() {
+        if (state == FAILED) {
+            state = IDLE;
+            failures = 0;
+        }
+    }
+
+    private void enqueue(Pending p) {
+
+        if (state == IDLE) {
+            connect();
+        }
+
+        if (tail == null) {
+            head = tail = p;
+        } else {
+            tail.next = p;
+            tail = p;
+        }
+
+        manager.retain(p.message);
+    }
+
+    private boolean unreachable() {
+        return state == FAILED || state == PROBING;
+    }
+
+    /**
+     * Sends a fragment over this connection, carrying the destinations from
+     * (inclusive) to to (exclusive).
+     */
+    int send(Message m, int from, int to, boolean silent) {
+
+        Pending rest = null;
+        int result;
+
+        synchronized (this) {
+            try {
+                result = trySend(m, from, to, silent);
+            } catch (IOException e) {
+                logger.info("Write to " + id + " failed! ", e);
+                rest = broken();
+                result = SENT;
+            }
+        }
+
+        if (rest != null) {
+            manager.reroute(rest);
+        }
+
+        return result;
+    }
+
+    private int trySend(Message m, int from, int to, boolean silent)
+            throws IOException {
+
+        if (state == CONNECTED) {
+            waitForCredit();
+        }
+
+        if (state == CONNECTED) {
+            manager.addBytes(write(m, from, to, silent));
+            return SENT;
+        }
+
+        if (unreachable()) {
+            return UNREACHABLE;
+        }
+
+        enqueue(new Pending(m, from, to, silent, -1, 0, null));
+        return QUEUED;
+    }
+
+    /**
+     * Sends a DONE message for multicast 'done' of 'target' over this
+     * connection. If the target is not the destination of this connection,
+     * the destination relays the message to the target. If the connection
+     * manager has a DONE_DELAY, the message is collected with the other DONE
+     * messages sent over this connection and sent later.
+     */
+    synchronized int sendDone(int target, int done) {
+
+        if (manager.DONE_DELAY == 0) {
+            return sendDone(target, done, null);
+        }
+
+        if (unreachable()) {
+            return UNREACHABLE;
+        }
+
+        if (doneCount == 0) {
+            doneRanges = new int[24];
+            manager.scheduleDone(this);
+        }
+
+        // The IDs of a sender usually complete in order, so most of them
+        // extend the last range.
+        if (doneSize > 0 && doneRanges[doneSize-3] == target
+                && doneRanges[doneSize-1] == done-1) {
+            doneRanges[doneSize-1] = done;
+        } else {
+            if (doneSize == doneRanges.length) {
+                doneRanges = Arrays.copyOf(doneRanges, 2*doneSize);
+            }
+            doneRanges[doneSize++] = target;
+            doneRanges[doneSize++] = done;
+            doneRanges[doneSize++] = done;
+        }
+
+        if (++doneCount >= manager.DONE_COUNT) {
+            flushDone();
+        }
+
+        return QUEUED;
+    }
+
+    /**
+     * Sends the DONE messages collected so far.
+     */
+    synchronized void flushDone() {
+
+        if (doneCount == 0) {
+            return;
+        }
+
+        int [] ranges = Arrays.copyOf(doneRanges, doneSize);
+
+        doneRanges = null;
+        doneSize = doneCount = 0;
+
+        if (sendDone(id, 0, ranges) == UNREACHABLE) {
+            logger.debug("Dropping " + (ranges.length/3)
+                    + " DONE ranges for " + id);
+        }
+    }
+
+    // Sends a single DONE message, or a number of ranges if ranges != null.
+    private int sendDone(int target, int done, int [] ranges) {
+
+        if (state == CONNECTED) {
+            try {
+                writeDone(target, done, ranges);
+            } catch (IOException e) {
+                logger.debug("Writing DONE message to " + id + " failed");
+                close();
+            }
+            return SENT;
+        }
+
+        if (unreachable()) {
+            return UNREACHABLE;
+        }
+
+        enqueue(new Pending(null, 0, 0, false, target, done, ranges));
+        return QUEUED;
+    }
+
+    private void write(Pending p) throws IOException {
+        if (p.message == null) {
+            writeDone(p.doneTarget, p.done, p.doneRanges);
+        } else {
+            manager.addBytes(write(p.message, p.from, p.to, p.silent));
+        }
+    }
+
+    private void writeDone(int target, int done, int [] ranges)
+            throws IOException {
+
+        WriteMessage wm = newMessage();
+
+        if (ranges != null) {
+            wm.writeInt(Message.DONE_RANGES);
+            wm.writeInt(ranges.length/3);
+            wm.writeArray(ranges);
+        } else if (target == id) {
+            wm.writeInt(Message.DONE);
+            wm.writeInt(done);
+        } else {
+            wm.writeInt(Message.DONE_RELAY);
+            wm.writeInt(target);
+            wm.writeInt(done);
+        }
+
+        wm.finish();
+    }
+
+    // Only send the destinations if the target does not have them installed
+    // under this route yet.
+    private boolean mustInstall(Message m, int count) {
+
+        if (count == 0) {
+            return true;
+        }
+
+        RouteTable.Route r = installed.get(m.sender, m.route);
+        return r == null || r.labels != m.destinations || r.count != count;
+    }
+
+    private long write(Message m, int from, int to, boolean silent)
+            throws IOException {
+
+        int count = to - from;
+        boolean install = mustInstall(m, count);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Writing message " + m.id + "/" + m.num
+                 + " to " + id
+                 + ", sender " + m.sender
+                 + ", destinations left = " + count
+                 + (install ? "" : " (route " + m.route + ")"));
+        }
+
+        remember(m, from, to, silent);
+
+        long bytes = 0;
+
+        if (manager.COALESCE == 0) {
+            WriteMessage wm = sendport.newMessage();
+            m.write(wm, from, to, silent, install, manager.CUT_THROUGH);
+            bytes = wm.finish();
+        } else {
+            if (batched == null) {
+                batched = new Message[16];
+            } else if (batchedCount == batched.length) {
+                batched = Arrays.copyOf(batched, 2*batchedCount);
+            }
+
+            manager.retain(m);
+            batched[batchedCount++] = m;
+
+            if (batchedCount == 1) {
+                firstFrom = from;
+                firstTo = to;
+                firstSilent = silent;
+                firstInstall = install;
+                manager.coalescing(this);
+
+                // Its destinations only make it larger.
+                if (8 + Message.HEADER + m.len >= manager.COALESCE) {
+                    bytes = finishBatch();
+                }
+            } else {
+                if (batch == null) {
+                    batch = sendport.newMessage();
+                    batch.writeInt(Message.BATCH);
+                    batchBytes = batched[0].write(batch, firstFrom, firstTo,
+                            firstSilent, firstInstall, manager.CUT_THROUGH);
+                }
+
+                batchBytes += m.write(batch, from, to, silent, install,
+                        manager.CUT_THROUGH);
+
+                if (batchBytes >= manager.COALESCE) {
+                    bytes = finishBatch();
+                }
+            }
+        }
+
+        if (manager.CREDITS > 0) {
+            credits--;
+        }
+
+        if (install && count > 0) {
+            installed.put(m.sender, m.route, m.destinations, count);
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Forwards a fragment over this connection while its data is still being
+     * read from 'rm', piece by piece, carrying the destinations from
+     * (inclusive) to to (exclusive). This is only done if the fragment can
+     * be written right away, that is, if the connection is set up, nothing
+     * is queued and we have a credit.
+     *
+     * If a write fails halfway, the rest of the data is read anyway, and the
+     * failure is handled as in send().
+     *
+     * @return true if the fragment was forwarded (and its data read), false
+     * if nothing was read and the fragment should be forwarded as usual
+     */
+    boolean cutThrough(Message m, ReadMessage rm, int from, int to,
+            boolean silent) throws IOException {
+
+        Pending rest = null;
+        boolean result = false;
+
+        synchronized (this) {
+            if (state != CONNECTED || head != null || !hasCredit()) {
+                return false;
+            }
+
+            int count = to - from;
+            boolean install = mustInstall(m, count);
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Cut-through message " + m.id + "/" + m.num
+                        + " to " + id);
+            }
+
+            remember(m, from, to, silent);
+
+            WriteMessage wm = null;
+            boolean reading = false;
+            int done = 0;
+
+            try {
+                wm = newMessage();
+                m.writeHeader(wm, from, to, silent, install);
+
+                while (done < m.len) {
+                    int n = Math.min(manager.CUT_THROUGH, m.len - done);
+
+                    reading = true;
+                    rm.readArray(m.buffer, m.base + done, n);
+                    reading = false;
+
+                    wm.writeArray(m.buffer, m.base + done, n);
+                    wm.flush();
+                    done += n;
+                }
+
+                manager.addBytes(wm.finish());
+
+                if (manager.CREDITS > 0) {
+                    credits--;
+                }
+
+                if (install && count > 0) {
+                    installed.put(m.sender, m.route, m.destinations, count);
+                }
+
+            } catch (IOException e) {
+                if (reading) {
+                    // We lost the fragment ourselves, so the other side
+                    // cannot get all of it either. Closing the connection
+                    // makes sure it does not mistake what follows for the
+                    // rest.
+                    forgetLast();
+                    close();
+                    throw e;
+                }
+
+                // The write failed. We still need the rest of the data, both
+                // to deliver it and to forward it to someone else.
+                logger.info("Write to " + id + " failed! ", e);
+                m.readData(rm, done, manager.CUT_THROUGH);
+                rest = broken();
+            }
+
+            result = true;
+        }
+
+        if (rest != null) {
+            manager.reroute(rest);
+        }
+
+        return result;
+    }
+
+    // Finishes the message the fragments are coalesced in before the
+    // sendport is closed.
+    private void endBatch() {
+        try {
+            manager.addBytes(finishBatch());
+        } catch (IOException e) {
+            // ignore, the connection is closed anyway
+        }
+    }
+
+    /**
+     * Closes the sendport. The connection will be set up again when it is
+     * used next.
+     */
+    synchronized void close() {
+
+        endBatch();
+
+        if (sendport != null) {
+            try {
+                sendport.close();
+            } catch (Exception e) {
+                // ignore, we tried...
+            }
+            sendport = null;
+        }
+
+        if (state == CONNECTED) {
+            state = IDLE;
+        }
+
+        notifyAll();
+    }
+}
@@ -0,0 +1,536 @@
+package mcast.lrm;
+
+import ibis.ipl.Ibis;
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.PortType;
+import ibis.ipl.SendPort;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import ibis.util.TypedProperties;
+
+import mcast.util.DynamicObjectArray;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps track of the connections from a LableRoutingMulticast to the other
+ * members of the pool.
+ *
+ * Connections are set up by a small pool of connector threads, so that the
+ * data path never waits for a connection to some unrelated destination. Each
+ * destination has its own Connection, which holds its own state.
+ */
+final class ConnectionManager {
+
+    static final int CONNECT_TIMEOUT = 10000;
+
+    private static final Logger logger
+            = Logger.getLogger(ConnectionManager.class);
+
+    private final LableRoutingMulticast lrmc;
+    private final Ibis ibis;
+    private final PortType portType;
+    private final String name;
+    private final MessageCache cache;
+
+    private final DynamicObjectArray connections = new DynamicObjectArray();
+
+    private final ExecutorService connector;
+
+    // DONE messages to the same sender are collected for at most DONE_DELAY
+    // ms, or until DONE_COUNT of them are waiting, and are then sent as a
+    // single message. A DONE_DELAY of 0 sends each DONE message right away.
+    final long DONE_DELAY;
+    final int DONE_COUNT;
+
+    // Sends the delayed DONE messages, and probes the destinations we could
+    // not reach.
+    private final ScheduledExecutorService timer;
+
+    // The backoff (in ms) before the first probe of a destination we could
+    // not reach. It is doubled after each failed probe, up to MAX_RETRY_DELAY.
+    // The actual delay is picked at random between half the backoff and the
+    // full backoff, so the members do not all probe at the same time.
+    final long RETRY_DELAY;
+    final long MAX_RETRY_DELAY;
+
+    private final Random random = new Random();
+
+    private long trips = 0;
+    private long recoveries = 0;
+
+    // If CREDITS > 0, each connection may have at most CREDITS fragments
+    // outstanding that have not been forwarded by the destination yet. The
+    // destination returns credits in batches of CREDIT_BATCH.
+    final int CREDITS;
+    final int CREDIT_BATCH;
+
+    // If RETRANSMIT > 0, each connection keeps the last RETRANSMIT fragments
+    // it wrote, and forwards them to the next destination if its own
+    // destination dies.
+    final int RETRANSMIT;
+
+    // If CUT_THROUGH > 0, the data of each fragment is written in pieces of
+    // CUT_THROUGH bytes, and a node forwards each piece as soon as it has
+    // received it (see LableRoutingMulticast.cutThrough). All members must
+    // use the same value.
+    final int CUT_THROUGH;
+
+    // If COALESCE > 0, the fragments written to a connection one after the
+    // other are coalesced in one message of up to about COALESCE bytes (see
+    // Connection). The connections that have such a message open are kept
+    // here until they are flushed.
+    final int COALESCE;
+
+    private Connection [] coalescing = new Connection[16];
+    private int coalescingCount = 0;
+
+    private long resent = 0;
+
+    private long creditStalls = 0;
+    private long creditStallTime = 0;
+
+    private boolean closed = false;
+
+    private long bytes = 0;
+
+    ConnectionManager(LableRoutingMulticast lrmc, Ibis ibis, PortType portType,
+            String name, MessageCache cache) {
+        this.lrmc = lrmc;
+        this.ibis = ibis;
+        this.portType = portType;
+        this.name = name;
+        this.cache = cache;
+
+        TypedProperties tp = new TypedProperties(ibis.properties());
+        DONE_DELAY = Math.max(0, tp.getIntProperty("lrmc.doneDelay", 0));
+        DONE_COUNT = Math.max(1, tp.getIntProperty("lrmc.doneCount", 64));
+        CREDITS = Math.max(0, tp.getIntProperty("lrmc.credits", 0));
+        CREDIT_BATCH = Math.max(1, CREDITS / 4);
+        RETRANSMIT = Math.max(0, tp.getIntProperty("lrmc.retransmit", 0));
+        CUT_THROUGH = Math.max(0, tp.getIntProperty("lrmc.cutThrough", 0));
+        COALESCE = Math.max(0, tp.getIntProperty("lrmc.coalesce", 0));
+        RETRY_DELAY = Math.max(1, tp.getIntProperty("lrmc.retryDelay", 1000));
+        MAX_RETRY_DELAY = Math.max(RETRY_DELAY,
+                tp.getIntProperty("lrmc.maxRetryDelay", 60000));
+
+        connector = Executors.newCachedThreadPool(
+                threadFactory("LableRoutingMulticast:" + name + ":connect"));
+
+        timer = Executors.newSingleThreadScheduledExecutor(
+                threadFactory("LableRoutingMulticast:" + name + ":timer"));
+    }
+
+    private static ThreadFactory threadFactory(final String threadName) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, threadName);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    synchronized Connection get(int id) {
+
+        Connection c = (Connection) connections.get(id);
+
+        if (c == null) {
+            c = new Connection(this, id);
+            connections.put(id, c);
+        }
+
+        return c;
+    }
+
+    // Forgets the connection to a member that left, so a member that gets
+    // the same ID later will get a new one. The fragments that member may not
+    // have forwarded are forwarded to someone else.
+    void remove(int id) {
+
+        Connection c;
+
+        synchronized (this) {
+            if (id > connections.last()) {
+                return;
+            }
+
+            c = (Connection) connections.get(id);
+            connections.remove(id);
+        }
+
+        if (c != null) {
+            c.left();
+        }
+    }
+
+    /**
+     * Returns the connections that are currently connected.
+     */
+    Connection [] getConnected() {
+
+        Connection [] tmp;
+
+        synchronized (this) {
+            tmp = new Connection[connections.last()+1];
+
+            for (int i=0;i<tmp.length;i++) {
+                tmp[i] = (Connection) connections.get(i);
+            }
+        }
+
+        // The connections lock themselves while they call us, so we do not
+        // look at their state while holding our own lock.
+        int count = 0;
+
+        for (int i=0;i<tmp.length;i++) {
+            if (tmp[i] != null && tmp[i].getState() == Connection.CONNECTED) {
+                tmp[count++] = tmp[i];
+            }
+        }
+
+        Connection [] result = new Connection[count];
+        System.arraycopy(tmp, 0, result, 0, count);
+        return result;
+    }
+
+    // Called by a connection that started coalescing fragments.
+    synchronized void coalescing(Connection c) {
+
+        if (coalescingCount == coalescing.length) {
+            coalescing = Arrays.copyOf(coalescing, 2*coalescingCount);
+        }
+
+        coalescing[coalescingCount++] = c;
+    }
+
+    /**
+     * Writes the fragments that the connections have coalesced so far.
+     */
+    void flush() {
+
+        if (COALESCE == 0) {
+            return;
+        }
+
+        Connection [] tmp;
+        int count;
+
+        synchronized (this) {
+            if (coalescingCount == 0) {
+                return;
+            }
+
+            tmp = coalescing;
+            count = coalescingCount;
+
+            coalescing = new Connection[tmp.length];
+            coalescingCount = 0;
+        }
+
+        // The connections lock themselves while they call us, so we do not
+        // call them while holding our own lock.
+        for (int i=0;i<count;i++) {
+            tmp[i].flush();
+        }
+    }
+
+    void execute(Runnable r) {
+
+        try {
+            connector.execute(r);
+        } catch (RejectedExecutionException e) {
+            // We are closed. Run it here; it will fail immediately.
+            r.run();
+        }
+    }
+
+    // Makes sure the DONE messages collected by the connection are sent
+    // within DONE_DELAY ms.
+    void scheduleDone(final Connection c) {
+
+        try {
+            timer.schedule(new Runnable() {
+                public void run() {
+                    c.flushDone();
+                }
+            }, DONE_DELAY, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // We are closed.
+        }
+    }
+
+    // Returns the scheduled task, or null if we are closed.
+    ScheduledFuture<?> scheduleAtFixedRate(Runnable r, long period) {
+        try {
+            return timer.scheduleAtFixedRate(r, period, period,
+                    TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // We are closed.
+            return null;
+        }
+    }
+
+    // Schedules a probe of the connection, after it failed 'failures' times
+    // in a row.
+    void scheduleProbe(final Connection c, int failures) {
+
+        long backoff = RETRY_DELAY << Math.min(failures-1, 30);
+
+        if (backoff <= 0 || backoff > MAX_RETRY_DELAY) {
+            backoff = MAX_RETRY_DELAY;
+        }
+
+        long delay;
+
+        synchronized (random) {
+            delay = backoff/2 + (long) (random.nextDouble() * (backoff/2 + 1));
+        }
+
+        try {
+            timer.schedule(new Runnable() {
+                public void run() {
+                    c.probe();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // We are closed.
+        }
+    }
+
+    synchronized void addTrip() {
+        trips++;
+    }
+
+    synchronized void addRecovery() {
+        recoveries++;
+    }
+
+    /**
+     * Returns the number of times a destination became unreachable.
+     */
+    synchronized long getTrips() {
+        return trips;
+    }
+
+    /**
+     * Returns the number of times a probe reached a destination that was
+     * unreachable.
+     */
+    synchronized long getRecoveries() {
+        return recoveries;
+    }
+
+    SendPort createSendPort(int id) throws IOException {
+
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Connection manager closed");
+            }
+        }
+
+        // The ibis may not be known yet if we got a message from it before
+        // we got the join event.
+        IbisIdentifier ibisID = lrmc.waitForIbis(id, CONNECT_TIMEOUT);
+
+        if (ibisID == null) {
+            throw new IOException("No Ibis yet at position " + id);
+        }
+
+        SendPort sp = ibis.createSendPort(portType);
+
+        try {
+            sp.connect(ibisID, "Ring-" + name, CONNECT_TIMEOUT, true);
+        } catch (IOException e) {
+            try {
+                sp.close();
+            } catch (Exception e2) {
+                // ignore
+            }
+            throw e;
+        }
+
+        return sp;
+    }
+
+    void maybeDead(int id) {
+
+        IbisIdentifier ibisID = lrmc.getIbis(id);
+
+        logger.info("Failed to connect to " + id + " - informing nameserver!");
+
+        try {
+            if (ibisID != null) {
+                ibis.registry().maybeDead(ibisID);
+            }
+        } catch (Exception e) {
+            logger.info("Failed to inform nameserver! " + e);
+            // ignore
+        }
+    }
+
+    void reroute(Connection.Pending list) {
+
+        while (list != null) {
+            Connection.Pending p = list;
+            list = p.next;
+
+            if (p.message == null) {
+                logger.debug("Dropping DONE message " + p.done);
+                continue;
+            }
+
+            try {
+                lrmc.reroute(p.message, p.from, p.to, p.silent);
+            } catch (Exception e) {
+                logger.info("Failed to reroute message! ", e);
+            } finally {
+                release(p.message);
+            }
+        }
+    }
+
+    // Called when a message is queued for a connection.
+    void retain(Message m) {
+        if (m != null) {
+            cache.retain(m);
+        }
+    }
+
+    // Called when a message queued for a connection is written or dropped.
+    void release(Message m) {
+        if (m != null) {
+            cache.put(m);
+        }
+    }
+
+    // Returns a credit to the node we got the message from, once the message
+    // is taken into the send queue (or will not be forwarded by us at all).
+    void accepted(Message m) {
+        int upstream = m.upstream;
+
+        if (upstream != -1) {
+            m.upstream = -1;
+            get(upstream).returnCredit();
+        }
+    }
+
+    // Called when a connection keeps a fragment for retransmission.
+    void keep(Message m) {
+        cache.retain(m);
+    }
+
+    // Called when a connection no longer needs a fragment it kept.
+    void discard(Message m) {
+        cache.put(m);
+    }
+
+    // Returns a copy of a fragment to forward again. Unlike the original, it
+    // does not owe a credit to the node we got it from.
+    Message copy(Message m) {
+
+        Message copy = cache.get(m.len);
+
+        // The header in front of the data is copied along with it.
+        System.arraycopy(m.buffer, m.off - Message.HEADER, copy.buffer,
+                copy.base - Message.HEADER, Message.HEADER + m.len);
+
+        copy.sender = m.sender;
+        copy.id = m.id;
+        copy.num = m.num;
+        copy.last = m.last;
+        copy.unordered = m.unordered;
+        copy.stripeEnd = m.stripeEnd;
+        copy.silent = m.silent;
+        copy.route = m.route;
+        copy.destinations = m.destinations;
+        copy.destinationsUsed = m.destinationsUsed;
+        copy.off = copy.base;
+        copy.len = m.len;
+
+        return copy;
+    }
+
+    synchronized void addResent(int count) {
+        resent += count;
+    }
+
+    /**
+     * Returns the number of fragments forwarded again since the destination
+     * they were written to died.
+     */
+    synchronized long getResent() {
+        return resent;
+    }
+
+    synchronized void addCreditStall(long time) {
+        creditStalls++;
+        creditStallTime += time;
+    }
+
+    /**
+     * Returns the number of fragments that had to wait for a credit.
+     */
+    synchronized long getCreditStalls() {
+        return creditStalls;
+    }
+
+    /**
+     * Returns the total time (in ms) local senders were blocked waiting for
+     * a credit.
+     */
+    synchronized long getCreditStallTime() {
+        return creditStallTime;
+    }
+
+    synchronized void addBytes(long bytes) {
+        this.bytes += bytes;
+    }
+
+    synchronized long getBytes(boolean reset) {
+
+        long tmp = bytes;
+
+        if (reset) {
+            bytes = 0;
+        }
+
+        return tmp;
+    }
+
+    void close() {
+
+        int last;
+
+        synchronized (this) {
+            closed = true;
+            last = connections.last();
+        }
+
+        connector.shutdownNow();
+
+        timer.shutdownNow();
+
+        for (int i=0;i<=last;i++) {
+            Connection c;
+
+            synchronized (this) {
+                c = (Connection) connections.get(i);
+            }
+
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+}
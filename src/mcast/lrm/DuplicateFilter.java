@@ -0,0 +1,117 @@
+package mcast.lrm;
+
+import java.util.BitSet;
+
+import mcast.util.IntObjectMap;
+
+/**
+ * Remembers the fragments received most recently from each sender, so that
+ * fragments that are forwarded again after a node died (see Connection) are
+ * only delivered and forwarded once.
+ *
+ * A fragment is identified by its sender, multicast ID and number. For each
+ * sender, the last WINDOW of them are kept in a ring buffer. To look them up,
+ * the numbers seen are kept in a bit set per multicast ID.
+ */
+final class DuplicateFilter {
+
+    private final class Window {
+
+        // The IDs and numbers in order of arrival.
+        final int [] ids = new int[window];
+        final int [] nums = new int[window];
+        int head = 0;
+        int count = 0;
+
+        // The numbers in the window, per multicast ID.
+        final IntObjectMap series = new IntObjectMap();
+
+        boolean contains(int id, int num) {
+            BitSet s = (BitSet) series.get(id);
+            return s != null && s.get(num);
+        }
+
+        void add(int id, int num) {
+
+            if (count == window) {
+                remove(ids[head], nums[head]);
+                head = (head + 1) % window;
+                count--;
+            }
+
+            int tail = (head + count) % window;
+            ids[tail] = id;
+            nums[tail] = num;
+            count++;
+
+            BitSet s = (BitSet) series.get(id);
+
+            if (s == null) {
+                s = new BitSet();
+                series.put(id, s);
+            }
+
+            s.set(num);
+        }
+
+        private void remove(int id, int num) {
+
+            BitSet s = (BitSet) series.get(id);
+
+            if (s == null) {
+                return;
+            }
+
+            s.clear(num);
+
+            if (s.isEmpty()) {
+                series.remove(id);
+            }
+        }
+    }
+
+    private final int window;
+
+    private final IntObjectMap senders = new IntObjectMap();
+
+    private long duplicates = 0;
+
+    DuplicateFilter(int window) {
+        this.window = Math.max(1, window);
+    }
+
+    /**
+     * Records that the given fragment was received, and returns true if it
+     * was received before.
+     */
+    synchronized boolean seen(int sender, int id, int num) {
+
+        Window w = (Window) senders.get(sender);
+
+        if (w == null) {
+            w = new Window();
+            senders.put(sender, w);
+        }
+
+        num &= ~Message.LAST_PACKET;
+
+        if (w.contains(id, num)) {
+            duplicates++;
+            return true;
+        }
+
+        w.add(id, num);
+        return false;
+    }
+
+    /**
+     * Forgets the fragments of the given sender, since its ID may be reused.
+     */
+    synchronized void remove(int sender) {
+        senders.remove(sender);
+    }
+
+    synchronized long getDuplicates() {
+        return duplicates;
+    }
+}
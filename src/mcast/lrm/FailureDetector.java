@@ -0,0 +1,233 @@
+package mcast.lrm;
+
+import mcast.util.IntObjectMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Detects dead destinations long before a write or a connection setup fails.
+ *
+ * Every INTERVAL ms, a heartbeat is sent over each connection that is set up,
+ * and the destination replies to it over its own connection to us. For each
+ * destination we keep the times between the replies, and compute the
+ * suspicion level phi from their mean and standard deviation, as in the phi
+ * accrual failure detector (Hayashibara et al.). phi is the (negative log10
+ * of the) probability that a reply arrives even later than now, given the
+ * replies seen so far. If it exceeds THRESHOLD, the destination is suspected:
+ * its connection is closed and marked as failed, so the fragments routed to
+ * it skip it right away, and the nameserver is told it may be dead.
+ *
+ * If a reply from a suspected destination turns up after all, the suspicion
+ * is lifted and the connection will be set up again when it is used.
+ */
+final class FailureDetector extends Thread {
+
+    private static final Logger logger
+            = Logger.getLogger(FailureDetector.class);
+
+    // The number of intervals kept per destination.
+    private static final int WINDOW = 64;
+
+    private final class History {
+
+        final double [] intervals = new double[WINDOW];
+        int count = 0;
+        int next = 0;
+
+        double sum = 0;
+        double squares = 0;
+
+        // The time (in ms) of the last reply, or of the first heartbeat sent.
+        long last;
+
+        History(long now) {
+            this.last = now;
+        }
+
+        void add(double value) {
+
+            if (count == WINDOW) {
+                sum -= intervals[next];
+                squares -= intervals[next] * intervals[next];
+            } else {
+                count++;
+            }
+
+            intervals[next] = value;
+            next = (next + 1) % WINDOW;
+
+            sum += value;
+            squares += value * value;
+        }
+
+        double phi(long now) {
+
+            if (count == 0) {
+                // The destination may still be connecting to us to send the
+                // first reply, so we give it as long as a connection setup.
+                return now - last > ConnectionManager.CONNECT_TIMEOUT
+                    ? Double.POSITIVE_INFINITY : 0;
+            }
+
+            double mean = sum / count;
+            double variance = squares / count - mean * mean;
+
+            // A very regular history would make any delay look like a
+            // failure, so the deviation is at least a quarter interval.
+            double deviation = Math.max(Math.sqrt(Math.max(variance, 0)),
+                    interval / 4.0);
+
+            // A logistic approximation of the normal distribution.
+            double y = (now - last - mean) / deviation;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+
+            if (now - last > mean) {
+                return -Math.log10(e / (1.0 + e));
+            } else {
+                return -Math.log10(1.0 - 1.0 / (1.0 + e));
+            }
+        }
+    }
+
+    private final ConnectionManager connections;
+
+    private final long interval;
+    private final double threshold;
+
+    private final IntObjectMap histories = new IntObjectMap();
+
+    private long suspicions = 0;
+    private long revivals = 0;
+
+    private boolean finish = false;
+
+    FailureDetector(ConnectionManager connections, long interval,
+            double threshold, String name) {
+
+        super("LableRoutingMulticast:" + name + ":heartbeat");
+        setDaemon(true);
+
+        this.connections = connections;
+        this.interval = interval;
+        this.threshold = threshold;
+    }
+
+    public void run() {
+
+        while (true) {
+            synchronized (this) {
+                if (finish) {
+                    return;
+                }
+            }
+
+            Connection [] connected = connections.getConnected();
+            long now = System.currentTimeMillis();
+
+            for (int i=0;i<connected.length;i++) {
+                check(connected[i], now);
+            }
+
+            synchronized (this) {
+                try {
+                    if (!finish) {
+                        wait(interval);
+                    }
+                } catch (InterruptedException e) {
+                    // ignored
+                }
+            }
+        }
+    }
+
+    synchronized void terminate() {
+        finish = true;
+        notifyAll();
+    }
+
+    private void check(final Connection c, final long now) {
+
+        double phi;
+
+        synchronized (this) {
+            History h = (History) histories.get(c.id);
+
+            if (h == null) {
+                h = new History(now);
+                histories.put(c.id, h);
+            }
+
+            phi = h.phi(now);
+
+            if (phi > threshold) {
+                histories.remove(c.id);
+                suspicions++;
+            }
+        }
+
+        if (phi > threshold) {
+            logger.info("Suspecting " + c.id + " (phi " + phi + ")");
+            c.suspect();
+            return;
+        }
+
+        // The connection may be busy writing fragments, so we do not wait
+        // for it here.
+        connections.execute(new Runnable() {
+            public void run() {
+                c.sendHeartbeat(Message.HEARTBEAT, now);
+            }
+        });
+    }
+
+    /**
+     * Handles a heartbeat reply from the given destination.
+     */
+    void gotReply(int from) {
+
+        if (from == -1) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        boolean revive = false;
+
+        synchronized (this) {
+            History h = (History) histories.get(from);
+
+            if (h == null) {
+                // We suspected it, or we forgot about it.
+                h = new History(now);
+                histories.put(from, h);
+                revive = true;
+            } else {
+                h.add(now - h.last);
+                h.last = now;
+            }
+        }
+
+        if (revive && connections.get(from).getState() == Connection.FAILED) {
+            synchronized (this) {
+                revivals++;
+            }
+            logger.info("Got a heartbeat from suspect " + from);
+            connections.get(from).revive();
+        }
+    }
+
+    /**
+     * Forgets everything about the given destination, since its ID may be
+     * reused.
+     */
+    synchronized void remove(int id) {
+        histories.remove(id);
+    }
+
+    synchronized long getSuspicions() {
+        return suspicions;
+    }
+
+    synchronized long getRevivals() {
+        return revivals;
+    }
+}
@@ -0,0 +1,317 @@
+package mcast.lrm;
+
+/**
+ * Compact wire encoding for the label (destination) lists carried by a
+ * {@link Message}.
+ *
+ * Every encoded list starts with a type byte and a varint label count,
+ * followed by the labels in one of four forms:
+ *
+ *   RAW    - four bytes per label.
+ *   DELTA  - zigzag varint of the difference with the previous label.
+ *   RANGES - runs of consecutive labels, each written as a zigzag varint
+ *            start (relative to the end of the previous run) and a varint
+ *            run length.
+ *   BITMAP - a varint base followed by one bit per label in [base, max]. Only
+ *            usable when the labels are strictly increasing, since a bitmap
+ *            does not preserve order.
+ *
+ * The encoder picks whichever form is smallest for the given list. The decoder
+ * works directly on the caller's arrays and never allocates.
+ */
+final class LabelCodec {
+
+    static final byte RAW = 0;
+    static final byte DELTA = 1;
+    static final byte RANGES = 2;
+    static final byte BITMAP = 3;
+
+    private LabelCodec() {
+        // static only
+    }
+
+    /**
+     * Returns the number of bytes needed in the worst case to encode count
+     * labels.
+     */
+    static int maxSize(int count) {
+        return 1 + 5 + 4*count;
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+
+        return size;
+    }
+
+    private static int putVarint(byte [] out, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    /**
+     * Encodes labels[from] ... labels[to-1] into out, which must be at least
+     * maxSize(to-from) bytes long.
+     *
+     * @return the number of bytes written
+     */
+    static int encode(int [] labels, int from, int to, byte [] out) {
+
+        final int count = to-from;
+
+        // Determine the size of each of the encodings in a single pass.
+        int raw = 4*count;
+        int delta = 0;
+        int ranges = 0;
+        boolean increasing = true;
+
+        int prev = 0;
+        int runEnd = 0;
+        int runStart = from;
+
+        for (int i=from;i<to;i++) {
+            int label = labels[i];
+
+            delta += varintSize(zigzag(label - prev));
+
+            if (i > from && label != prev + 1) {
+                // close the current run
+                ranges += varintSize(zigzag(labels[runStart] - runEnd))
+                        + varintSize(i - runStart - 1);
+                runEnd = prev;
+                runStart = i;
+            }
+
+            if (i > from && label <= prev) {
+                increasing = false;
+            }
+
+            prev = label;
+        }
+
+        if (count > 0) {
+            ranges += varintSize(zigzag(labels[runStart] - runEnd))
+                    + varintSize(to - runStart - 1);
+        }
+
+        int bitmap = Integer.MAX_VALUE;
+
+        if (increasing && count > 0 && labels[from] >= 0) {
+            bitmap = varintSize(labels[from])
+                + (labels[to-1] - labels[from]) / 8 + 1;
+        }
+
+        byte type = RAW;
+        int best = raw;
+
+        if (delta < best) {
+            type = DELTA;
+            best = delta;
+        }
+
+        if (ranges < best) {
+            type = RANGES;
+            best = ranges;
+        }
+
+        if (bitmap < best) {
+            type = BITMAP;
+            best = bitmap;
+        }
+
+        // Now write the chosen encoding.
+        out[0] = type;
+        int pos = putVarint(out, 1, count);
+
+        switch (type) {
+        case RAW:
+            for (int i=from;i<to;i++) {
+                out[pos++] = (byte) (labels[i] >> 24);
+                out[pos++] = (byte) (labels[i] >> 16);
+                out[pos++] = (byte) (labels[i] >> 8);
+                out[pos++] = (byte) labels[i];
+            }
+            break;
+
+        case DELTA:
+            prev = 0;
+            for (int i=from;i<to;i++) {
+                pos = putVarint(out, pos, zigzag(labels[i] - prev));
+                prev = labels[i];
+            }
+            break;
+
+        case RANGES:
+            runEnd = 0;
+            runStart = from;
+
+            for (int i=from+1;i<=to;i++) {
+                if (i == to || labels[i] != labels[i-1] + 1) {
+                    pos = putVarint(out, pos, zigzag(labels[runStart] - runEnd));
+                    pos = putVarint(out, pos, i - runStart - 1);
+                    runEnd = labels[i-1];
+                    runStart = i;
+                }
+            }
+            break;
+
+        case BITMAP:
+            int base = labels[from];
+            int bytes = (labels[to-1] - base) / 8 + 1;
+
+            pos = putVarint(out, pos, base);
+
+            for (int i=0;i<bytes;i++) {
+                out[pos+i] = 0;
+            }
+
+            for (int i=from;i<to;i++) {
+                int bit = labels[i] - base;
+                out[pos + (bit >> 3)] |= (byte) (1 << (bit & 7));
+            }
+
+            pos += bytes;
+            break;
+        }
+
+        return pos;
+    }
+
+    /**
+     * Returns the number of labels in the encoded list.
+     */
+    static int count(byte [] in) {
+        int value = 0;
+        int shift = 0;
+        int pos = 1;
+        byte b;
+
+        do {
+            b = in[pos++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return value;
+    }
+
+    /**
+     * Decodes the encoded list in into labels, which must be at least count(in)
+     * elements long.
+     *
+     * @return the number of labels decoded
+     */
+    static int decode(byte [] in, int [] labels) {
+
+        final byte type = in[0];
+
+        // Skip the type and count; these are small, so decode them inline.
+        int pos = 1;
+        int count = 0;
+        int shift = 0;
+        byte b;
+
+        do {
+            b = in[pos++];
+            count |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        int index = 0;
+        int prev = 0;
+
+        switch (type) {
+        case RAW:
+            for (int i=0;i<count;i++) {
+                labels[i] = ((in[pos] & 0xFF) << 24)
+                    | ((in[pos+1] & 0xFF) << 16)
+                    | ((in[pos+2] & 0xFF) << 8) | (in[pos+3] & 0xFF);
+                pos += 4;
+            }
+            break;
+
+        case DELTA:
+            while (index < count) {
+                int value = 0;
+                shift = 0;
+
+                do {
+                    b = in[pos++];
+                    value |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+
+                prev += unzigzag(value);
+                labels[index++] = prev;
+            }
+            break;
+
+        case RANGES:
+            while (index < count) {
+                int start = 0;
+                shift = 0;
+
+                do {
+                    b = in[pos++];
+                    start |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+
+                int length = 0;
+                shift = 0;
+
+                do {
+                    b = in[pos++];
+                    length |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+
+                start = prev + unzigzag(start);
+
+                for (int i=0;i<=length;i++) {
+                    labels[index++] = (start + i);
+                }
+
+                prev = start + length;
+            }
+            break;
+
+        case BITMAP:
+            int base = 0;
+            shift = 0;
+
+            do {
+                b = in[pos++];
+                base |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            for (int bit=0;index < count;bit++) {
+                if ((in[pos + (bit >> 3)] & (1 << (bit & 7))) != 0) {
+                    labels[index++] = (base + bit);
+                }
+            }
+            break;
+        }
+
+        return count;
+    }
+}
@@ -5,24 +5,22 @@ import ibis.ipl.IbisIdentifier;
 import ibis.ipl.PortType;
 import ibis.ipl.ReadMessage;
 import ibis.ipl.ReceivePort;
-import ibis.ipl.SendPort;
 import ibis.ipl.MessageUpcall;
-import ibis.ipl.WriteMessage;
 
 import ibis.util.TypedProperties;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import mcast.util.DynamicObjectArray;
 import mcast.util.IbisSorter;
+import mcast.util.IntObjectMap;
+import mcast.util.MemberRegistry;
+import mcast.util.TopologyIndex;
 
 import org.apache.log4j.Logger;
 
 public class LableRoutingMulticast extends Thread implements MessageUpcall {
 
-    private final static int ZOMBIE_THRESHOLD = 10000;
-
     private static final Logger logger
             = Logger.getLogger(LableRoutingMulticast.class);
 
@@ -36,24 +34,72 @@ public class LableRoutingMulticast extends Thread implements MessageUpcall {
     
     private final MessageCache cache;
     
-    private final DynamicObjectArray sendports = new DynamicObjectArray();    
-    private final DynamicObjectArray diedmachines = new DynamicObjectArray();
+    private final ConnectionManager connections;
+    
+    // The routes installed here by our predecessors.
+    private final RouteTable routes = new RouteTable();
     
     private boolean finish = false;
     private boolean changeOrder = false;    
+
+    // The number of children each node forwards a fragment to. A radix of 1 
+    // gives the original chain, larger values give a k-ary tree. 
+    private final int treeRadix;
+    
+    // In tree mode, the end of each branch sends a DONE message. This holds 
+    // the number of DONE messages sent for a fragment by a node that has i 
+    // destinations left, and, for the multicasts we sent, the number of DONE
+    // messages that still have to come in. 
+    private int [] branches = new int[] { 1 };
+    private final IntObjectMap doneCounts = new IntObjectMap();
+    
+    // If > 0, the last node of a multicast sends its DONE message to one of 
+    // the doneRelays members with the lowest IDs, which relays it to the 
+    // sender. This way, only the relays need a connection to every sender. 
+    private final int doneRelays;
+    private int [] relays = new int[0];
+    
+    // If > 1, the fragments of a multicast are sent round-robin over this 
+    // many chains, each a different rotation of the destinations. Each chain
+    // uses its own route slot.  
+    private final int stripes;
+    private int [][] stripeDestinations;
+    
+    // Set if the fragments we send may arrive out of order, see 
+    // Message.UNORDERED_PACKET.
+    private final boolean unordered;
     
-    private short [] destinations = null;
+    private int [] destinations = null;
+    private int route = 0;
     
-    private HashMap<IbisIdentifier, Short> knownIbis
-            = new HashMap<IbisIdentifier, Short>();
-    private DynamicObjectArray ibisList = new DynamicObjectArray();
+    // The IDs of the known ibises. The IDs of ibises that leave are reused.
+    private final MemberRegistry members = new MemberRegistry();
         
-    private short nextIbisID = 0;
-    private short myID = -1;
+    // The location keys of the known ibises, to order destinations quickly.
+    private final TopologyIndex index = new TopologyIndex();
+    
+    private int myID = -1;
    
-    private long bytes = 0;
-
     private MessageQueue sendQueue;
+    
+    // The number of received fragments that were queued for forwarding, but
+    // have not been forwarded yet. 
+    private final AtomicInteger forwarding = new AtomicInteger();
+    
+    // Measures the costs between the members, if enabled (lrmc.topology).
+    private Topology topology;
+    
+    // Suspects dead destinations, if enabled (lrmc.heartbeatInterval).
+    private FailureDetector detector;
+    
+    // Collects the reports of the members on their forwarding speed, if
+    // enabled (lrmc.reportInterval). If changeOrder is set, the members that 
+    // are too slow are moved to the tail of our chain.
+    private Stragglers stragglers;
+    
+    // Drops fragments we got before, if fragments may be forwarded again
+    // after a node died (lrmc.retransmit).
+    private DuplicateFilter duplicates;
       
     public LableRoutingMulticast(Ibis ibis, MessageReceiver m, MessageCache c, 
             String name) throws IOException {
@@ -67,16 +113,67 @@ public class LableRoutingMulticast extends Thread implements MessageUpcall {
         this.name = name;
         this.cache = c;
         this.changeOrder = changeOrder;
-        this.sendQueue = new MessageQueue(
-                new TypedProperties(ibis.properties()).getIntProperty(
-                    "lrmc.queueSize", 32));
+        
+        TypedProperties tp = new TypedProperties(ibis.properties());
+        int queueSize = tp.getIntProperty("lrmc.queueSize", 32);
+        this.sendQueue = new MessageQueue(queueSize) { 
+            protected void accepted(Message m) { 
+                // The fragment has a slot now, so we can return its credit.
+                connections.accepted(m);
+            }
+        };
+        this.treeRadix = Math.max(1, tp.getIntProperty("lrmc.treeRadix", 1));
+        this.doneRelays = Math.max(0, tp.getIntProperty("lrmc.doneRelays", 0));
+        this.stripes = Math.max(1, Math.min(RouteTable.SLOT_MASK+1, 
+                tp.getIntProperty("lrmc.stripes", 1)));
         portType = getPortType();
+        connections = new ConnectionManager(this, ibis, portType, name, cache);
+        
+        if (tp.getBooleanProperty("lrmc.topology", false)) { 
+            topology = new Topology(this, connections, 
+                    tp.getIntProperty("lrmc.probeInterval", 10000),
+                    tp.getIntProperty("lrmc.probePeers", 4),
+                    cache.getPrefferedMessageSize(), name);
+        }
+        
+        unordered = stripes > 1 || connections.RETRANSMIT > 0;
+        
+        if (connections.RETRANSMIT > 0) { 
+            duplicates = new DuplicateFilter(
+                    Math.max(256, 4*connections.RETRANSMIT));
+        }
+        
+        int report = tp.getIntProperty("lrmc.reportInterval", 0);
+        
+        if (report > 0) { 
+            stragglers = new Stragglers(connections, report, queueSize);
+        }
+        
+        int heartbeat = tp.getIntProperty("lrmc.heartbeatInterval", 0);
+        
+        if (heartbeat > 0) { 
+            detector = new FailureDetector(connections, heartbeat, 
+                    tp.getIntProperty("lrmc.phiThreshold", 8), name);
+        }
+        
         receive = ibis.createReceivePort(portType, "Ring-" + name, this);
         receive.enableConnections();
         receive.enableMessageUpcalls();
                               
         super.setName("LableRoutingMulticast:" + name);
         this.start();
+        
+        if (topology != null) { 
+            topology.start();
+        }
+        
+        if (detector != null) { 
+            detector.start();
+        }
+        
+        if (stragglers != null) { 
+            stragglers.start();
+        }
     }
 
     public static PortType getPortType() {
@@ -85,208 +182,410 @@ public class LableRoutingMulticast extends Thread implements MessageUpcall {
         PortType.CONNECTION_MANY_TO_ONE, PortType.RECEIVE_AUTO_UPCALLS);
     }
     
-    private synchronized SendPort getSendPort(int id) {
+    private void internalSend(Message m) {
+        if (m.destinationsUsed == 0) {  
+            if (isLast(m) && !m.silent) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Writing DONE message " + m.id
+                         + " to sender "  + m.sender);
+                }
+                if (m.sender == -1) { 
+                    logger.debug("No sendport for sender " + m.sender);
+                } else { 
+                    sendDone(m.sender, m.id, true);
+                }
+            }
+            return;
+        }
+
+        if (treeRadix == 1 || m.destinationsUsed == 1) { 
+            // Plain chain: the first destination gets all the others.
+            forward(m, 0, m.destinationsUsed, m.silent);
+            return;
+        }
         
-        if (id == -1) { 
-            logger.info("Ignoring " + id);
-            return null;
+        // Tree mode: split the remaining destinations into (at most) treeRadix
+        // parts of nearly equal size. The first destination of each part 
+        // becomes a child of this node, and the rest of the part is the 
+        // sub-list that child is responsible for. The end of every branch 
+        // sends a DONE message, and the sender waits for all of them (see
+        // branches).
+        int parts = Math.min(treeRadix, m.destinationsUsed);
+        int from = 0;
+        
+        for (int i=0;i<parts;i++) { 
+            int to = from + (m.destinationsUsed - from) / (parts - i);
+            forward(m, from, to, m.silent);
+            from = to;
         }
-                
-        SendPort sp = (SendPort) sendports.get(id);
+    } 
+    
+    // Returns the number of DONE messages sent for a fragment by a node that
+    // has 'used' destinations left, that is, the number of branches of the 
+    // tree below it. All members use the same radix, so the sender knows 
+    // how many DONE messages to expect.
+    private synchronized int branches(int used) { 
         
-        if (sp == null) {
-            // We're not connect to this ibis yet, so connect and store for 
-            // later use.
+        if (treeRadix == 1) { 
+            return 1;
+        }
+        
+        if (used >= branches.length) { 
+            int [] tmp = new int[Math.max(used+1, 2*branches.length)];
+            System.arraycopy(branches, 0, tmp, 0, branches.length);
             
-            // Test if the machine died recently to prevent us from trying to 
-            // connect over and over again (this may be a problem since a single
-            // large mcast may be fragmented into many small packets, each with 
-            // the same route containing the dead machine)            
-            Long ripTime = (Long) diedmachines.get(id);
-
-            if (ripTime != null) { 
-                
-                long now = System.currentTimeMillis();
-                
-                if (now - ripTime.longValue() > ZOMBIE_THRESHOLD) { 
-                    // the machine has been dead for a long time, but the sender
-                    // insists it is still alive. Lets try again and see what 
-                    // happens.
-                    diedmachines.remove(id);
+            for (int u=branches.length;u<tmp.length;u++) { 
+                if (u == 1) { 
+                    tmp[u] = tmp[0];
+                } else {
+                    // Same split as in internalSend.
+                    int parts = Math.min(treeRadix, u);
+                    int from = 0;
                     
-                    logger.info("Sender insists that " + id  
-                            + " is still allive, so I'll try again!");
-                } else { 
-                    logger.info("Ignoring " + id + " since it's dead!");
-                    return null;
-                }                
+                    for (int i=0;i<parts;i++) { 
+                        int to = from + (u - from) / (parts - i);
+                        tmp[u] += tmp[to - from - 1];
+                        from = to;
+                    }
+                }
             }
             
+            branches = tmp;
+        }
+        
+        return branches[used];
+    }
+    
+    // Returns true if m is the last fragment of a multicast. Note that the 
+    // fragments we send ourselves have the flag set in their number.
+    private static boolean isLastFragment(Message m) { 
+        return m.last || (m.num & Message.LAST_PACKET) != 0;
+    }
+    
+    // Returns true if the last hop of m must send a DONE. That is the case 
+    // for the last fragment of a multicast, and for the fragments that close 
+    // the other stripes.
+    private static boolean isLast(Message m) { 
+        return isLastFragment(m) || m.stripeEnd;
+    }
+    
+    // Sends 'count' DONE messages for a fragment on behalf of branches that 
+    // will not send them.
+    private void sendDone(Message m, int count) { 
+        
+        for (int i=0;i<count;i++) { 
+            if (m.sender == myID) { 
+                gotDone(myID, m.id, m.id);
+            } else if (m.sender != -1) { 
+                sendDone(m.sender, m.id, true);
+            }
+        }
+    }
+    
+    // Returns the number of stripes used for the fragments we send now.
+    private int stripesUsed() { 
+        return stripes > 1 && stripeDestinations != null 
+            ? stripeDestinations.length : 1;
+    }
+    
+    // Registers the number of DONE messages to wait for, if we send the last
+    // fragment of a multicast down a tree, or over several stripes. Each 
+    // stripe is closed separately (see closeStripes), and sends its own DONE
+    // messages.
+    private void expectDone(Message m) { 
+        
+        if ((treeRadix == 1 && stripes == 1) || !isLastFragment(m)) { 
+            return;
+        }
+        
+        synchronized (doneCounts) { 
+            doneCounts.put(m.id, new int[] { 
+                    stripesUsed() * branches(m.destinationsUsed) });
+        }
+    }
+    
+    // Sends an empty fragment that closes the multicast down every stripe 
+    // but the one of its last fragment, m. The fragments of a stripe arrive 
+    // in order, so once the last hop of a stripe got the fragment that closes
+    // it, it got all fragments of the multicast sent down that stripe, and it 
+    // sends a DONE. 
+    private void closeStripes(Message m) { 
+        
+        if (!isLastFragment(m) || stripesUsed() == 1) { 
+            return;
+        }
+        
+        int k = stripesUsed();
+        int s = m.route & RouteTable.SLOT_MASK;
+        
+        for (int i=1;i<k;i++) { 
+            int stripe = (s + i) % k;
+            Message end = cache.get(0);
             
-            boolean failed = false;
+            end.sender = myID;
+            end.id = m.id;
+            // A number that is not used by a fragment of the multicast, so 
+            // the duplicate filter does not drop it.
+            end.num = (m.num & ~Message.LAST_PACKET) + i;
+            end.destinations = stripeDestinations[stripe];
+            end.destinationsUsed = end.destinations.length;
+            end.route = route | stripe;
+            end.off = end.base;
+            end.len = 0;
+            end.local = true;
+            end.last = false;
+            end.unordered = unordered;
+            end.stripeEnd = true;
+            end.storeHeader();
             
-            IbisIdentifier ibisID = (IbisIdentifier) ibisList.get(id); 
-
-            try { 
-                sp = ibis.createSendPort(portType);         
-                
-                if (ibisID == null) {
-                    synchronized(this) {
-                        try {
-                            wait(10000);
-                        } catch(Exception e) {
-                            // ignored
-                        }
-                    }
-                }
-
-                ibisID = (IbisIdentifier) ibisList.get(id); 
-
-                if (ibisID != null) {
-                    if (ibisID != null) {
-                        sp.connect(ibisID, "Ring-" + name, 10000, true);
-                        sendports.put(id, sp);
-                    } else {
-                        logger.info("No Ibis yet at position " + id);
-                        failed = true;
-                    }
-                } else {
-                    logger.info("No Ibis yet at position " + id);
-                    failed = true;
-                }
-            } catch (IOException e) {
-                failed = true;                
-                logger.info("Got exception ", e);
-            } 
-            
-            if (failed) {
-                logger.info("Failed to connect to " + id 
-                            + " - informing nameserver!");
-                                
-                // notify the nameserver that this machine may be dead...
-                try { 
-                    if (ibisID != null) {
-                        ibis.registry().maybeDead(ibisID);
-                    } 
-                    diedmachines.put(id, new Long(System.currentTimeMillis()));                    
-                } catch (Exception e2) {
-                    logger.info("Failed to inform nameserver! " + e2);
-                    // ignore
-                }
-                
-                logger.info("Done informing nameserver");
-                return null;
-            }
+            internalSend(end);
+            cache.put(end);
         }
-   
-        return sp;
     }
 
-    private void internalSend(Message m) {
-        SendPort sp = null;
-        if (m.destinationsUsed == 0) {  
-            if (m.last) {
-                sp = getSendPort(m.sender); 
-                if (sp != null) {
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Writing DONE message " + m.id
-                             + " to sender "  + m.sender);
-                    }
-                    try {
-                        WriteMessage wm = sp.newMessage();
-                        wm.writeInt(-1);
-                        wm.writeInt(m.id);
-                        wm.finish();
-                    } catch(IOException e) {
-                        logger.debug("Writing DONE message to "
-                                + m.sender + " failed");
-                    }
-                } else if (logger.isDebugEnabled()) {
-                    logger.debug("No sendport for sender " + m.sender);
-                }
+    private void sendDone(int sender, int id, boolean relay) { 
+        
+        if (relay) { 
+            int r = getRelay(sender);
+            
+            if (r != -1 && connections.get(r).sendDone(sender, id) 
+                    != Connection.UNREACHABLE) { 
+                return;
             }
+        }
+        
+        if (connections.get(sender).sendDone(sender, id) 
+                == Connection.UNREACHABLE) { 
+            logger.debug("No sendport for sender " + sender);
+        }
+    }
+    
+    // Returns the relay for DONE messages to the given sender, or -1 if the 
+    // DONE message should be sent directly. 
+    private synchronized int getRelay(int sender) { 
+        
+        if (relays.length == 0) { 
+            return -1;
+        }
+        
+        int r = relays[sender % relays.length];
+        
+        if (r == myID || r == sender) { 
+            return -1;
+        }
+        
+        return r;
+    }
+    
+    // Uses the doneRelays known ibises with the lowest IDs as relays. 
+    private void updateRelays() { 
+        
+        if (doneRelays == 0) { 
             return;
         }
-
-        // Get the next target from the destination array. If this fails, get 
-        // the next one, etc. If no working destination is found we give up.  
-        int index = 0;        
-        short id = -1;
-        
-        do { 
-            id = m.destinations[index++]; 
-            sp = getSendPort(id); 
-            if (sp == null) {
-                synchronized(this) {
-                    if (finish) {
-                        return;
-                    }
-                }
+        
+        int [] tmp = new int[doneRelays];
+        int count = 0;
+        
+        for (int i=0;i<members.limit() && count < doneRelays;i++) { 
+            if (members.get(i) != null) { 
+                tmp[count++] = i;
             }
-        } while (sp == null && index < m.destinationsUsed);
+        }
         
-        try {
-            if (sp == null) { 
-                // No working destinations where found, so give up!
-                logger.info("No working destinations found, giving up!");
+        relays = new int[count];
+        System.arraycopy(tmp, 0, relays, 0, count);
+    }
+    
+    private void forward(Message m, int from, int to, boolean silent) {
+        forward(m, from, to, silent, to - from - 1);
+    }
+    
+    // Forwards the fragment to the first working destination in [from, to),
+    // which was meant to get 'left' destinations. 
+    private void forward(Message m, int from, int to, boolean silent, 
+            int left) {
+        
+        // Get the next target from the destination array. If it is known to 
+        // be unreachable, get the next one, etc. If no working destination is 
+        // found we give up. Note that this never waits for a connection to be
+        // set up; the connection will queue the message until it is ready. 
+        int index = from;        
+        
+        while (index < to) { 
+            int id = m.destinations[index++]; 
+            
+            if (id == -1) { 
+                logger.info("Ignoring " + id);
+            } else if (connections.get(id).send(m, index, to, silent) 
+                    != Connection.UNREACHABLE) { 
+                if (index - 1 > to - left - 1 && isLast(m) && !silent 
+                        && treeRadix > 1) { 
+                    // We skipped some destinations, so the branches they 
+                    // were in will not send a DONE. We send it for them.
+                    sendDone(m, branches(left) - branches(to - index));
+                }
                 return;
+            } else { 
+                logger.info("Ignoring " + id + " since it's dead!");
             }
-            
-            if (logger.isDebugEnabled()) {
-                logger.debug("Writing message " + m.id + "/" + m.num 
-                     + " to " + id
-                     + ", sender " + m.sender
-                     + ", destinations left = " + (m.destinationsUsed - index));
+
+            synchronized(this) {
+                if (finish) {
+                    return;
+                }
             }
+        } 
+        
+        // No working destinations where found, so give up!
+        logger.info("No working destinations found, giving up!");
+    }
+
+    // Called by the connection manager when the connection for a queued 
+    // message could not be set up. 
+    void reroute(Message m, int from, int to, boolean silent) { 
+        if (from < to) { 
+            // The destination at from-1 is dead, so we take over its part.
+            forward(m, from, to, silent, to - from);
+        } else { 
+            logger.info("No working destinations found, giving up!");
+        }
+    }
+    
+    /**
+     * Starts setting up connections to the given ibises in the background, so
+     * the first multicast to them does not have to wait for it.
+     */
+    public void preconnect(IbisIdentifier [] ids) { 
+        for (int i=0;i<ids.length;i++) { 
+            int id = getIbisID(ids[i]);
             
-            // send the message to the target        
-            WriteMessage wm = sp.newMessage();
-            m.write(wm, index);        
-            bytes += wm.finish();
-        } catch (IOException e) {
-            logger.info("Write to " + id + " failed! ", e);
-            sendports.remove(id);            
+            if (id != -1) { 
+                connections.get(id).connect();
+            }
         }
-    } 
-
+    }
+    
     public synchronized void addIbis(IbisIdentifier ibis) {
         
-        if (!knownIbis.containsKey(ibis)) { 
-            knownIbis.put(ibis, new Short(nextIbisID));            
-            ibisList.put(nextIbisID, ibis);
+        if (members.get(ibis) == -1) { 
+            int id = members.add(ibis);
+            index.add(id, ibis);
             
-            logger.info("Adding Ibis " + nextIbisID + " " + ibis);
+            logger.info("Adding Ibis " + id + " " + ibis);
                                     
             if (ibis.equals(this.ibis.identifier())) {                
-                logger.info("I am " + nextIbisID + " " + ibis);
-                myID = nextIbisID;
+                logger.info("I am " + id + " " + ibis);
+                myID = id;
             }
         
-            nextIbisID++;
+            updateRelays();
             notifyAll();
         }        
     }
 
-    public synchronized void removeIbis(IbisIdentifier ibis) {
-                
-        Short tmp = knownIbis.remove(ibis);
+    /**
+     * Removes an ibis, and returns the ID it had, or -1 if it was not known.
+     * The ID will be given to the next ibis that joins.
+     */
+    public int removeIbis(IbisIdentifier ibis) {
+        
+        int id;
+        
+        synchronized (this) { 
+            id = members.remove(ibis);
+        
+            if (id == -1) {
+                return -1;
+            }
+            
+            logger.info("Removing ibis " + id + " " + ibis);
+            index.remove(id);
+            routes.remove(id);
+            updateRelays();
+        }
+
+        // Make sure whoever gets the ID next does not inherit the connection
+        // or the measurements of this ibis.
+        connections.remove(id);
+        
+        if (topology != null) { 
+            topology.remove(id);
+        }
         
-        if (tmp != null) {
-            logger.info("Removing ibis " + tmp.shortValue() + " " + ibis);
-            ibisList.remove(tmp.shortValue());
+        if (detector != null) { 
+            detector.remove(id);
         }
+        
+        if (duplicates != null) { 
+            duplicates.remove(id);
+        }
+        
+        if (stragglers != null) { 
+            stragglers.remove(id);
+        }
+        
+        return id;
+    }
+    
+    synchronized IbisIdentifier getIbis(int id) { 
+        return members.get(id);
+    }
+    
+    // Waits until the ibis with the given ID is known, or timeout ms have 
+    // passed. 
+    synchronized IbisIdentifier waitForIbis(int id, long timeout) { 
+        
+        long deadline = System.currentTimeMillis() + timeout;
+        
+        IbisIdentifier result = members.get(id);
+        
+        while (result == null && !finish) { 
+            long left = deadline - System.currentTimeMillis();
+            
+            if (left <= 0) { 
+                break;
+            }
+            
+            try {
+                wait(left);
+            } catch(Exception e) {
+                // ignored
+            }
+            
+            result = members.get(id);
+        }
+        
+        return result;
     }
 
-    private synchronized short getIbisID(IbisIdentifier ibis) {
+    synchronized int getMyID() { 
+        return myID;
+    }
+    
+    // Returns the IDs of all known ibises.
+    synchronized int [] getMembers() { 
+        return members.members();
+    }
+    
+    /**
+     * Returns the topology service that measures the costs between members, 
+     * or null if it is not enabled (lrmc.topology). Its measurements are only
+     * used to order the destinations if changeOrder is set.
+     */
+    public Topology getTopology() { 
+        return topology;
+    }
+    
+    private synchronized int getIbisID(IbisIdentifier ibis) {
         
-        Short s = knownIbis.get(ibis);
+        int id = members.get(ibis);
         
-        if (s != null) { 
-            return s.shortValue();
-        } else { 
+        if (id == -1) { 
             logger.debug("Ibis " + ibis + " not known!");
-            return -1;
         }
+        
+        return id;
     }
     
     public void setDestination(IbisIdentifier [] destinations) { 
@@ -294,44 +593,149 @@ public class LableRoutingMulticast extends Thread implements MessageUpcall {
         logger.debug("setDestination called, destinations.length = "
                 + destinations.length, new Throwable());
 
-        if (changeOrder) { 
+        int [] ids = new int[destinations.length];
+        
+        for (int i=0;i<destinations.length;i++) { 
+            ids[i] = getIbisID(destinations[i]);
+        }
+        
+        if (changeOrder && (topology == null 
+                || !topology.order(getMyID(), ids))
+                && !index.sort(getMyID(), ids)) { 
             // We are allowed to change the order of machines in the destination
-            // array. This can be used to make the mcast 'cluster aware'.  
+            // array. This can be used to make the mcast 'cluster aware'. We get
+            // here if we have no measurements, so we guess the 
+            // topology from the locations. The index normally does this, 
+            // unless some of the destinations are not known yet. 
             IbisSorter.sort(ibis.identifier(), destinations);                     
-        }
         
-        this.destinations = new short[destinations.length];
+            for (int i=0;i<destinations.length;i++) { 
+                ids[i] = getIbisID(destinations[i]);
+            }
+        }
         
-        for (int i=0;i<destinations.length;i++) { 
-            this.destinations[i] = getIbisID(destinations[i]);            
-            logger.debug("  " + i + " (" + destinations[i] + " at " 
-                  + destinations[i].location().getParent() + ") -> " + this.destinations[i]);
+        if (changeOrder && stragglers != null) { 
+            stragglers.order(ids);
         }
+        
+        install(ids);
     }
     
-    public long getBytes(boolean reset) { 
+    // Uses the given destinations for the next fragments we send.
+    private void install(int [] ids) { 
+        
+        this.destinations = ids;
         
-        long tmp = bytes;
+        // A new destination set gets a new route ID, so the receivers will 
+        // install the new labels with the next fragment they get.
+        this.route += 1 << RouteTable.SLOT_BITS;
         
-        if (reset) { 
-            bytes = 0;
+        if (logger.isDebugEnabled()) { 
+            for (int i=0;i<ids.length;i++) { 
+                IbisIdentifier id = getIbis(ids[i]);
+                logger.debug("  " + i + " (" + id + ") -> " + ids[i]);
+            }
         }
         
-        return tmp;
+        if (stripes > 1) { 
+            // Stripe s starts s/stripes of the way into the destinations, so 
+            // each destination forwards to a different successor in each 
+            // stripe.
+            int n = this.destinations.length;
+            int k = Math.max(1, Math.min(stripes, n));
+            
+            stripeDestinations = new int[k][];
+            
+            for (int s=0;s<k;s++) { 
+                int start = s * n / k;
+                int [] tmp = new int[n];
+                System.arraycopy(this.destinations, start, tmp, 0, n - start);
+                System.arraycopy(this.destinations, 0, tmp, n - start, start);
+                stripeDestinations[s] = tmp;
+                preconnect(tmp);
+            }
+        } else { 
+            preconnect(this.destinations);
+        }
     }
+    
+    // Start connecting to the nodes we will send to directly.
+    private void preconnect(int [] destinations) { 
+        
+        int used = destinations.length;
+        int parts = Math.min(treeRadix, used);
+        int from = 0;
         
+        for (int i=0;i<parts;i++) { 
+            if (destinations[from] != -1) { 
+                connections.get(destinations[from]).connect();
+            }
+            from += (used - from) / (parts - i);
+        }
+    }
+    
+    // Sets the destinations and route of a message we send, depending on the
+    // stripe of the fragment.
+    private void setRoute(Message m) { 
+        
+        if (stripes > 1 && stripeDestinations != null) { 
+            int num = m.num & ~(Message.LAST_PACKET | Message.SILENT_PACKET);
+            int s = num % stripeDestinations.length;
+            
+            m.destinations = stripeDestinations[s];
+            m.route = route | s;
+        } else { 
+            m.destinations = destinations;
+            m.route = route;
+        }
+        
+        m.destinationsUsed = m.destinations.length;
+    }
+    
+    public long getBytes(boolean reset) { 
+        return connections.getBytes(reset);
+    }
+    
+    /**
+     * Sends a message to the current destinations. 
+     * 
+     * @return true if the caller may reuse the message right away, or false 
+     * if it is still queued for a destination that is being connected to (in
+     * which case the caller no longer owns it). 
+     */  
     public boolean send(Message m) {
         
-        short [] destOld = m.destinations;
+        if (changeOrder && stragglers != null && destinations != null 
+                && (m.num & ~(Message.LAST_PACKET | Message.SILENT_PACKET)) == 0
+                && stragglers.changed()) { 
+            // A new series, and the stragglers have changed since we ordered
+            // the chain. 
+            int [] ids = destinations.clone();
+            
+            if (stragglers.order(ids)) { 
+                install(ids);
+            }
+        }
         
-        m.destinations = destinations;
-        m.destinationsUsed = destinations.length;        
+        // Note that the destinations are never changed in place, so we can 
+        // simply share them with the message.
+        setRoute(m);
         m.sender = myID;
         m.local = true;
+        m.unordered = unordered;
+        m.stripeEnd = false;
+        m.storeHeader();
         
+        expectDone(m);
         internalSend(m);
+        closeStripes(m);
+        connections.flush();
+        
+        if (cache.isShared(m)) { 
+            cache.put(m);
+            return false;
+        }
         
-        m.destinations = destOld;        
         return true;        
     }
            
@@ -343,27 +747,29 @@ public class LableRoutingMulticast extends Thread implements MessageUpcall {
             return true;            
         }
         
-        Message m = cache.get(); 
+        // The message may be queued for a while, so we cannot let it refer to 
+        // the caller's buffer.
+        Message m = cache.get(len); 
         
-        byte [] tmp = m.buffer;
+        System.arraycopy(message, off, m.buffer, m.base, len);
         
         m.sender = myID;
-        m.destinations = destinations; 
-        m.destinationsUsed = destinations.length;
         m.id = id;
         m.num = num;
-        m.buffer = message;
-        m.off = off;
+        setRoute(m);
+        m.off = m.base;
         m.len = len;
         m.local = true;
         m.last = false;
+        m.unordered = unordered;
+        m.stripeEnd = false;
+        m.storeHeader();
                         
         //sendQueue.enqueue(m);        
+        expectDone(m);
         internalSend(m);
+        connections.flush();
         
-        // Restore the original buffer before putting the 
-        // message back in the cache... 
-        m.buffer = tmp;        
         cache.put(m);
         
         return true;
@@ -371,6 +777,10 @@ public class LableRoutingMulticast extends Thread implements MessageUpcall {
     
     public void run() { 
 
+        // The bytes forwarded since the fragments coalesced by the 
+        // connections were last flushed. 
+        long unflushed = 0;
+        
         while (true) {
             Message m = (Message) sendQueue.dequeue();
             if (m == null) {
@@ -378,12 +788,31 @@ public class LableRoutingMulticast extends Thread implements MessageUpcall {
                 return;
             }
 
+            long start = stragglers == null ? 0 : System.nanoTime();
+            
             try { 
                 internalSend(m);
+                
+                // The fragments coalesced so far are written once we run 
+                // out of fragments to forward, or have forwarded enough 
+                // of them to fill a message, in case the rest go elsewhere. 
+                unflushed += m.len;
+                
+                if (sendQueue.size() == 0 
+                        || unflushed >= connections.COALESCE) {  
+                    connections.flush();
+                    unflushed = 0;
+                }
             } catch (Exception e) {
                 logger.info("Sender thread got exception! ", e);
             } finally {
+                if (stragglers != null && m.destinationsUsed > 0) { 
+                    stragglers.forwarded(m.sender, m.len, 
+                            System.nanoTime() - start, sendQueue.size());
+                }
+
                 cache.put(m);
+                forwarding.decrementAndGet();
             }
         }    
     }
@@ -392,8 +821,22 @@ public class LableRoutingMulticast extends Thread implements MessageUpcall {
         // sendQueue.printTime();
         synchronized(this) {
             finish = true;
+            notifyAll();
         }
         sendQueue.terminate();
+        
+        if (topology != null) { 
+            topology.terminate();
+        }
+        
+        if (detector != null) { 
+            detector.terminate();
+        }
+        
+        if (stragglers != null) { 
+            stragglers.terminate();
+        }
+        
         try {
             join(10000);
         } catch(Exception e) {
@@ -401,17 +844,7 @@ public class LableRoutingMulticast extends Thread implements MessageUpcall {
         }
         try {             
             receive.disableConnections();
-
-            int last = sendports.last();
-            
-            for (int i=0;i<last;i++) { 
-                SendPort tmp = (SendPort) sendports.get(i);
-                
-                if (tmp != null) {                 
-                    tmp.close();
-                } 
-            }
-            
+            connections.close();
             receive.close(1000);
         } catch (Throwable e) {
             // ignore, we tried...
@@ -420,54 +853,380 @@ public class LableRoutingMulticast extends Thread implements MessageUpcall {
 
     public void upcall(ReadMessage rm) throws IOException {
         
-        Message message = null; 
-            
         try {
             int len = rm.readInt();
-            if (len == -1) {
+            if (len == Message.DONE) {
                 // DONE message
                 int id = rm.readInt();
                 if (logger.isDebugEnabled()) {
                     logger.debug("Got DONE for message " + id);
                 }
-                receiver.gotDone(id);
+                gotDone(myID, id, id);
+                return;
+            }
+            
+            if (len == Message.PROBE || len == Message.PROBE_REPLY
+                    || len == Message.COSTS) {
+                int from = getIbisID(rm.origin().ibisIdentifier());
+                
+                if (topology == null) { 
+                    // Not for us, ignore it.
+                    rm.finish();
+                } else if (len == Message.PROBE) { 
+                    topology.gotProbe(from, rm);
+                } else if (len == Message.PROBE_REPLY) { 
+                    topology.gotProbeReply(from, rm);
+                } else { 
+                    topology.gotCosts(from, rm);
+                }
+                return;
+            }
+            
+            if (len == Message.HEARTBEAT) { 
+                final long time = rm.readLong();
+                final int from = getIbisID(rm.origin().ibisIdentifier());
+                rm.finish();
+                
+                // We always reply, even if we do not detect failures 
+                // ourselves. The reply is sent by another thread, so we do
+                // not block here.
+                if (from != -1) { 
+                    connections.execute(new Runnable() {
+                        public void run() {
+                            connections.get(from).sendHeartbeat(
+                                    Message.HEARTBEAT_REPLY, time);
+                        }
+                    });
+                }
+                return;
+            }
+            
+            if (len == Message.HEARTBEAT_REPLY) { 
+                rm.readLong();
+                int from = getIbisID(rm.origin().ibisIdentifier());
+                rm.finish();
+                
+                if (detector != null) { 
+                    detector.gotReply(from);
+                }
+                return;
+            }
+            
+            if (len == Message.REPORT) { 
+                float capacity = rm.readFloat();
+                int queued = rm.readInt();
+                int from = getIbisID(rm.origin().ibisIdentifier());
+                rm.finish();
+                
+                if (stragglers != null) { 
+                    stragglers.gotReport(from, capacity, queued);
+                }
+                return;
+            }
+            
+            if (len == Message.CREDIT) { 
+                final int credits = rm.readInt();
+                final int id = getIbisID(rm.origin().ibisIdentifier());
+                rm.finish();
+                
+                // The connection may be busy writing to a slow destination, 
+                // so the credits are added by another thread, and we do not
+                // block here.
+                if (id != -1) { 
+                    connections.execute(new Runnable() {
+                        public void run() {
+                            connections.get(id).grant(credits);
+                        }
+                    });
+                }
+                return;
+            }
+            
+            if (len == Message.DONE_RELAY) { 
+                // DONE message that we must relay to the sender
+                int target = rm.readInt();
+                int id = rm.readInt();
+                rm.finish();
+                gotDone(target, id, id);
                 return;
             }
             
+            if (len == Message.DONE_RANGES) { 
+                // DONE message for a number of ranges of messages
+                int [] ranges = new int[3*rm.readInt()];
+                rm.readArray(ranges);
+                rm.finish();
+                
+                for (int i=0;i<ranges.length;i+=3) { 
+                    gotDone(ranges[i], ranges[i+1], ranges[i+2]);
+                }
+                return;
+            }
+            
+            if (len == Message.BATCH) { 
+                // A number of fragments, ended by another BATCH. 
+                len = rm.readInt();
+                
+                while (len != Message.BATCH) { 
+                    gotFragment(rm, len);
+                    len = rm.readInt();
+                }
+                return;
+            }
+            
+            gotFragment(rm, len);
+            
+        } catch (IOException e) {
+            logger.info("Failed to receive message: ", e);
+            rm.finish(e);
+        }               
+    }
+    
+    // Reads a fragment of the given length, delivers it, and queues it to be
+    // forwarded. 
+    private void gotFragment(ReadMessage rm, int len) throws IOException { 
+        
+        Message message = null; 
+        
+        try {
             int dst = rm.readInt();
             
             message = cache.get(len);                        
-            message.read(rm, len, dst);            
+            
+            if (!message.read(rm, len, dst, connections.CUT_THROUGH, 
+                    routes)) { 
+                logger.info("Message " + message.id + "/" + message.num 
+                        + " from " + message.sender + " uses unknown route " 
+                        + message.route + ", it will not be forwarded");
+            }
 
             if (logger.isDebugEnabled()) {
                 logger.debug("Reading message " + message.id + "/"
                         + message.num + " from " + message.sender);
             }
+            
+            if (connections.CREDITS > 0) { 
+                // We owe the node that sent us this message a credit, which 
+                // we return once it has a slot in the send queue.
+                message.upstream = getIbisID(rm.origin().ibisIdentifier());
+            }
+            
+            if (duplicates != null && duplicates.seen(message.sender, 
+                    message.id, message.num)) { 
+                // Forwarded again by someone after a node died, but we got 
+                // it before (and forwarded it ourselves).
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Dropping duplicate " + message.id + "/" 
+                            + message.num + " from " + message.sender);
+                }
+                message.readData(rm, connections.CUT_THROUGH);
+                connections.accepted(message);
+                cache.put(message);
+                return;
+            }
+            
+            // Cut-through is only used if the connection to the next hop can 
+            // take the fragment right away, so we do not wait for credits.
+            long start = stragglers == null ? 0 : System.nanoTime();
+            boolean forwarded = cutThrough(message, rm);
+            
+            if (forwarded && stragglers != null) { 
+                // Note that this includes the time spent waiting for the 
+                // data to come in.
+                stragglers.forwarded(message.sender, message.len, 
+                        System.nanoTime() - start, sendQueue.size());
+            }
+            
+            if (!forwarded) { 
+                message.readData(rm, connections.CUT_THROUGH);
+            }
 
-            if (!message.local) {        
-                message.refcount++;
+            if (!message.local && !message.stripeEnd) {        
+                cache.retain(message);
                 try { 
                     receiver.gotMessage(message);
                 } catch (Throwable e) {
                     logger.info("Delivery failed! ", e);
                 }
             }
-
-            // Is this OK? sendQueue may block (is not allowed in upcall)!
-            // However, calling finish() here may change the message order,
-            // so we cannot do that. (Ceriel).
-            sendQueue.enqueue(message);
             
-        } catch (IOException e) {
-            logger.info("Failed to receive message: ", e);
-            rm.finish(e);
+            if (forwarded) { 
+                connections.accepted(message);
+                cache.put(message);
+                return;
+            }
             
+            forwarding.incrementAndGet();
+
+            // We may not block in the upcall, since that stalls all incoming 
+            // connections. Calling finish() here may change the message order,
+            // so we cannot do that either. (Ceriel). Instead, the queue spills 
+            // the message if it is full, which preserves the order. The nodes
+            // upstream are held back by the credits (lrmc.credits).
+            if (!sendQueue.offer(message) && logger.isDebugEnabled()) { 
+                logger.debug("Send queue full, spilled message " + message.id 
+                        + "/" + message.num + " (" + sendQueue.size() 
+                        + " queued)");
+            }
+        } catch (IOException e) {
             if (message != null) { 
                 cache.put(message);
             }
-        }               
+            throw e;
+        }
     }
 
+    // In cut-through mode (lrmc.cutThrough), forwards the data of a fragment 
+    // to the next hop while it is still coming in, piece by piece. This is 
+    // only done in a chain, if the connection to the next hop can take it 
+    // right away, and if no earlier fragments are waiting to be forwarded, 
+    // since they must go first. Otherwise the fragment is stored and 
+    // forwarded as usual. Returns true if the fragment was forwarded, in 
+    // which case its data has been read as well. 
+    private boolean cutThrough(Message m, ReadMessage rm) throws IOException { 
+        
+        if (connections.CUT_THROUGH == 0 || m.destinationsUsed == 0 
+                || (treeRadix > 1 && m.destinationsUsed > 1)
+                || m.destinations[0] == -1 || forwarding.get() > 0) { 
+            return false;
+        }
+        
+        return connections.get(m.destinations[0]).cutThrough(m, rm, 1, 
+                m.destinationsUsed, m.silent);
+    }
+    
+    /**
+     * Returns the number of received messages that found the send queue full
+     * and were spilled.
+     */
+    public long getSpilled() { 
+        return sendQueue.getSpilled();
+    }
+    
+    /**
+     * Returns the largest number of received messages that were spilled at 
+     * the same time.
+     */
+    public int getMaxSpillSize() { 
+        return sendQueue.getMaxSpillSize();
+    }
+    
+    private void gotDone(int target, int first, int last) { 
+        
+        if (target != myID) { 
+            // We are a relay. 
+            for (int id=first;id<=last;id++) { 
+                sendDone(target, id, false);
+            }
+            return;
+        }
+        
+        if (logger.isDebugEnabled()) {
+            logger.debug("Got DONE for messages " + first + " - " + last);
+        }
+        
+        for (int id=first;id<=last;id++) { 
+            if (allDone(id)) { 
+                receiver.gotDone(id);
+            }
+        }
+    }
+    
+    // Returns true if all branches of the tree sent their DONE message for
+    // the given multicast.
+    private boolean allDone(int id) { 
+        
+        synchronized (doneCounts) { 
+            int [] count = (int []) doneCounts.get(id);
+            
+            if (count == null) { 
+                // In tree or stripe mode, this is a late DONE for a 
+                // multicast that is done already, for instance from a branch
+                // that got a fragment forwarded again after a node died.
+                return treeRadix == 1 && stripes == 1;
+            }
+            
+            if (--count[0] > 0) { 
+                return false;
+            }
+            
+            doneCounts.remove(id);
+            return true;
+        }
+    }
+    
+    /**
+     * Returns the number of fragments that had to wait for a credit (see the 
+     * lrmc.credits property).
+     */
+    public long getCreditStalls() { 
+        return connections.getCreditStalls();
+    }
+    
+    /**
+     * Returns the total time (in ms) that local sends were blocked waiting for
+     * a credit. 
+     */
+    public long getCreditStallTime() { 
+        return connections.getCreditStallTime();
+    }
+    
+    /**
+     * Returns the number of times a destination was suspected to be dead by
+     * the failure detector (see the lrmc.heartbeatInterval property).
+     */
+    public long getSuspicions() { 
+        return detector == null ? 0 : detector.getSuspicions();
+    }
+    
+    /**
+     * Returns the number of suspected destinations that turned out to be 
+     * alive after all.
+     */
+    public long getRevivals() { 
+        return detector == null ? 0 : detector.getRevivals();
+    }
+    
+    /**
+     * Returns the number of fragments forwarded again after the destination
+     * they were written to died (see the lrmc.retransmit property).
+     */
+    public long getResent() { 
+        return connections.getResent();
+    }
+    
+    /**
+     * Returns the number of fragments dropped since we got them before.
+     */
+    public long getDuplicates() { 
+        return duplicates == null ? 0 : duplicates.getDuplicates();
+    }
+    
+    /**
+     * Returns the number of times our chain was reordered to move stragglers
+     * to its tail (see the lrmc.reportInterval property).
+     */
+    public long getStragglerMoves() { 
+        return stragglers == null ? 0 : stragglers.getMoves();
+    }
+    
+    /**
+     * Returns the number of times a destination became unreachable, after 
+     * which it is skipped until a background probe reaches it again (see the
+     * lrmc.retryDelay and lrmc.maxRetryDelay properties).
+     */
+    public long getTrips() { 
+        return connections.getTrips();
+    }
+    
+    /**
+     * Returns the number of times a probe reached an unreachable destination
+     * again.
+     */
+    public long getRecoveries() { 
+        return connections.getRecoveries();
+    }
+    
     public int getPrefferedMessageSize() {
         return cache.getPrefferedMessageSize();
     }
@@ -4,6 +4,7 @@
 package mcast.lrm;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import ibis.ipl.ReadMessage;
 import ibis.ipl.WriteMessage;
@@ -12,12 +13,97 @@ public class Message {
     
     public static final int LAST_PACKET = 1 << 31;
     
-    public short sender;
+    // Set in the number of fragments that may arrive out of order, because 
+    // the sender stripes them over several chains or because they may be 
+    // forwarded again after a node died. The receiver must then put them 
+    // back in order. 
+    public static final int UNORDERED_PACKET = 1 << 30;
+    
+    // Set in the number of the (empty) fragments that close a stripe of a 
+    // multicast (see LableRoutingMulticast). They are only forwarded, and 
+    // their last hop sends a DONE, like the last hop of the last fragment.
+    static final int STRIPE_END = 1 << 29;
+    
+    // Set on fragments whose final hop must not send a DONE. This may differ
+    // per hop, so it is sent along with the size of the destinations.
+    public static final int SILENT_PACKET = 1 << 30;
+    
+    // Sent instead of the size of the encoded destinations when the receiver 
+    // already has the destinations installed under the message's route ID.
+    static final int ROUTE_REFERENCE = 1 << 29;
+    
+    // The bits that hold the size of the encoded destinations.
+    private static final int LABEL_MASK = ROUTE_REFERENCE - 1;
+    
+    // The size of the header (the sender, ID, number and route) that is kept
+    // in front of the data of each message, in its buffer. A received frame 
+    // is read as is, and forwarded without encoding it again.
+    static final int HEADER = 16;
+    
+    // Control messages are sent with a negative value where a fragment has 
+    // its length. 
+    
+    // DONE for a single multicast: followed by its ID.
+    static final int DONE = -1;
+    
+    // DONE for a number of multicasts: followed by the number of ranges, and
+    // the target, first and last ID of each range. Ranges for another target 
+    // are relayed to that target.
+    static final int DONE_RANGES = -2;
+    
+    // DONE for a single multicast that must be relayed: followed by the 
+    // target and the ID.
+    static final int DONE_RELAY = -3;
+    
+    // Fragment credits granted by the receiver: followed by the number of 
+    // credits.
+    static final int CREDIT = -4;
+    
+    // Topology probes (see Topology): a probe, followed by a sequence number,
+    // a time stamp, and a payload; the reply, followed by the sequence number
+    // and time stamp; and a row of the cost matrix, followed by the member it
+    // belongs to, the number of entries, their member IDs and their costs. 
+    static final int PROBE = -5;
+    static final int PROBE_REPLY = -6;
+    static final int COSTS = -7;
+    
+    // Heartbeats (see FailureDetector): a heartbeat, followed by a time stamp,
+    // and the reply, followed by the same time stamp. 
+    static final int HEARTBEAT = -8;
+    static final int HEARTBEAT_REPLY = -9;
+    
+    // A report of a member to a sender (see Stragglers): followed by its 
+    // forwarding capacity and the number of fragments it has queued.
+    static final int REPORT = -10;
+    
+    // A number of fragments coalesced in one message (see Connection): 
+    // followed by the fragments, each starting with its length as usual, and
+    // ended by another BATCH.
+    static final int BATCH = -11;
+    
+    private static final AtomicIntegerFieldUpdater<Message> REFCOUNT = 
+        AtomicIntegerFieldUpdater.newUpdater(Message.class, "refcount");
+    
+    public int sender;
 
-    short refcount;
+    // The number of references to this message. The message may be released
+    // by different threads (e.g., delivery and forwarding), so this is only 
+    // changed atomically.  
+    volatile int refcount;
     
-    public short [] destinations;
+    // Note that the destinations may be shared with other messages using the
+    // same route, so they must never be modified in place.
+    public int [] destinations;
     public int destinationsUsed;
+    
+    // The route ID under which the destinations are installed (see RouteTable).
+    public int route;
+    
+    // Scratch space for the encoded form of the destinations (see LabelCodec).
+    byte [] labels;
+    
+    // Scratch space for the destinations of a route that is installed again.
+    private int [] decoded;
            
     public int id;
     public int num;
@@ -26,24 +112,64 @@ public class Message {
     public int off;    
     public int len;
     
+    // The start of the data in this message's part of the buffer. The HEADER
+    // bytes before it hold the header. 
+    public final int base;
+    
+    // The space available in the buffer, starting at base.
+    public final int capacity;
+    
+    // The number of bytes of data read along with the header (see read).
+    private int received;
+    
+    // Set for messages that belong to a MessageCache arena. 
+    final boolean pooled;
+    
     public boolean last = false;
+    public boolean unordered = false;
+    public boolean stripeEnd = false;
+    public boolean silent = false;
     public boolean local = false;
     
     public Message next;
+    
+    // The node we received this message from if we owe it a credit for the 
+    // message (see Connection), or -1. The credit is returned once the 
+    // message is taken into the send queue.
+    int upstream = -1;
         
     //private int useCount = 0;
     
     public Message(int len) {
-        buffer = new byte[len];       
+        buffer = new byte[HEADER + len];       
+        base = HEADER;
+        capacity = len;
+        pooled = false;
+    }
+    
+    Message(byte [] arena, int base, int capacity) { 
+        this.buffer = arena;
+        this.base = base;
+        this.capacity = capacity;
+        this.pooled = true;
+    }
+    
+    void retain() { 
+        REFCOUNT.incrementAndGet(this);
+    }
+    
+    // Returns the number of references left.
+    int release() { 
+        return REFCOUNT.decrementAndGet(this);
     }
        
     //Message(int size, int destSize) { 
     //    buffer = new byte[size];
-    //    destinations = new short[destSize];
+    //    destinations = new int[destSize];
    // }
    
     /*
-    Message(short sender, short [] destinations, int id, int num, 
+    Message(int sender, int [] destinations, int id, int num, 
             byte [] buffer, int off, int len, boolean local) { 
         this.sender = sender;
         this.destinations = destinations;
@@ -56,63 +182,266 @@ public class Message {
     } 
     */  
            
-    void read(ReadMessage rm, int len, int dst) throws IOException { 
+    // Stores the header in front of the data. This must be done once for 
+    // each message we send ourselves, after its fields have been set. 
+    void storeHeader() { 
+        
+        int pos = off - HEADER;
+        
+        putInt(pos, sender);
+        putInt(pos + 4, id);
+        int n = num;
+        
+        if (last) { 
+            n |= LAST_PACKET;
+        }
+        
+        if (unordered) { 
+            n |= UNORDERED_PACKET;
+        }
+        
+        if (stripeEnd) { 
+            n |= STRIPE_END;
+        }
+        
+        putInt(pos + 8, n);
+        putInt(pos + 12, route);
+    }
+    
+    // Takes the fields from the header in front of the data.
+    private void loadHeader() { 
+        
+        int pos = off - HEADER;
+        
+        sender = getInt(pos);
+        id = getInt(pos + 4);
+        num = getInt(pos + 8);
+        route = getInt(pos + 12);
+        
+        last = ((num & LAST_PACKET) != 0);
+        unordered = ((num & UNORDERED_PACKET) != 0);
+        stripeEnd = ((num & STRIPE_END) != 0);
+        num &= ~(LAST_PACKET | UNORDERED_PACKET | STRIPE_END); 
+    }
+    
+    private void putInt(int pos, int v) { 
+        buffer[pos] = (byte) (v >>> 24);
+        buffer[pos+1] = (byte) (v >>> 16);
+        buffer[pos+2] = (byte) (v >>> 8);
+        buffer[pos+3] = (byte) v;
+    }
+    
+    private int getInt(int pos) { 
+        return ((buffer[pos] & 0xFF) << 24) | ((buffer[pos+1] & 0xFF) << 16) 
+            | ((buffer[pos+2] & 0xFF) << 8) | (buffer[pos+3] & 0xFF);
+    }
+    
+    // Reads the header and destinations of a fragment. If there are no 
+    // destinations to read and the data is not sent in pieces, the header 
+    // and data are read in one go, otherwise the data is not read (see 
+    // readData). Returns false if the message refers to a route that is not 
+    // installed.
+    boolean read(ReadMessage rm, int len, int dst, int piece, 
+            RouteTable routes) throws IOException { 
 
-        this.off = 0;
+        this.off = base;
         this.len = len;
         this.local = false;
         
-        sender = rm.readShort();        
-        id = rm.readInt();
-        num = rm.readInt();            
+        silent = ((dst & SILENT_PACKET) != 0);
         
-        last = ((num & LAST_PACKET) != 0);
-
-        if (last) { 
-            num &= ~LAST_PACKET; 
+        int labelSize = dst & LABEL_MASK; 
+        
+        if (labelSize == 0 && piece <= 0) { 
+            rm.readArray(buffer, base - HEADER, HEADER + len);
+            received = len;
+        } else { 
+            rm.readArray(buffer, base - HEADER, HEADER);
+            received = 0;
         }
-
-        if (len > 0) { 
-            rm.readArray(buffer, 0, len);
-        } 
-
-        if (dst > 0) {
-            // TODO optimize!            
-            if (destinations == null || destinations.length < dst) {
-                destinations = new short[dst];
+        
+        loadHeader();
+        
+        if (labelSize > 0) {
+            // The destinations are encoded in 'labelSize' bytes. They are 
+            // decoded into a new array which is installed as the route, so 
+            // that all later fragments using the same route can share it. 
+            // This is the only allocation per route; the scratch buffers are 
+            // reused if they are large enough.             
+            if (labels == null || labels.length < labelSize) {
+                labels = new byte[labelSize];
             } 
         
-            rm.readArray(destinations, 0, dst);                       
-        } 
+            rm.readArray(labels, 0, labelSize);                       
+            
+            int count = LabelCodec.count(labels);
+            
+            // A route may be installed again, for instance after our 
+            // predecessor reconnected. If it did not change, we keep the one
+            // we have.
+            RouteTable.Route r = routes.get(sender, route);
+            
+            if (r != null && r.count == count) { 
+                if (decoded == null || decoded.length < count) { 
+                    decoded = new int[count];
+                }
+                
+                LabelCodec.decode(labels, decoded);
+                
+                if (same(decoded, r.labels, count)) { 
+                    destinations = r.labels;
+                    destinationsUsed = count;
+                    return true;
+                }
+            }
+            
+            int [] tmp = new int[count];
+            LabelCodec.decode(labels, tmp);
+            
+            routes.put(sender, route, tmp, count);
+            
+            destinations = tmp;
+            destinationsUsed = count;
+            
+        } else if ((dst & ROUTE_REFERENCE) != 0) { 
+            
+            RouteTable.Route r = routes.get(sender, route);
+            
+            if (r == null) { 
+                // We never saw the fragment that installed this route, so we
+                // cannot forward this one. Make sure we don't pretend to be 
+                // the last hop either. 
+                destinationsUsed = 0;
+                silent = true;
+                return false;
+            } 
+            
+            destinations = r.labels;
+            destinationsUsed = r.count;
+        } else { 
+            destinationsUsed = 0;
+        }
         
-        destinationsUsed = dst;
+        return true;
     } 
     
-    void write(WriteMessage wm, int fromDest) throws IOException { 
+    private static boolean same(int [] a, int [] b, int count) { 
         
-        int destinationLength = destinationsUsed-fromDest; 
+        for (int i=0;i<count;i++) { 
+            if (a[i] != b[i]) { 
+                return false;
+            }
+        }
         
-        // First write the two variable lengths present in the message.   
-        wm.writeInt(len);                
-        wm.writeInt(destinationLength);
+        return true;
+    }
+    
+    // Reads the data of a fragment, in pieces of the given size if piece > 0
+    // (see write), unless it was read along with the header.
+    void readData(ReadMessage rm, int piece) throws IOException { 
+        readData(rm, received, piece);
+    }
+    
+    // Reads the rest of the data of a fragment, of which the first 'done' 
+    // bytes (a multiple of the piece size) have been read already. 
+    void readData(ReadMessage rm, int done, int piece) throws IOException { 
         
-        // Then write the content that guaranteed to be there        
-        wm.writeShort(sender);
-        wm.writeInt(id);
-
-        if (last) { 
-            wm.writeInt(num | Message.LAST_PACKET);
-        } else { 
-            wm.writeInt(num);            
-        }        
+        if (piece <= 0) { 
+            if (len > done) { 
+                rm.readArray(buffer, base + done, len - done);
+            }
+            return;
+        }
+        
+        for (;done<len;done+=piece) { 
+            rm.readArray(buffer, base + done, Math.min(piece, len - done));
+        }
+    }
+    
+    // Returns the size of the encoded destinations to send, or a reference 
+    // to a route installed earlier, along with the silent flag. The 
+    // destinations are encoded in the scratch buffer. 
+    private int destinationHeader(int fromDest, int toDest, boolean silent, 
+            boolean install) { 
         
-        // Finally write the actual data that has a variable size        
-        if (len > 0) { 
-            wm.writeArray(buffer, off, len);
+        int dst = 0; 
+        
+        if (toDest > fromDest) { 
+            if (install) { 
+                int max = LabelCodec.maxSize(toDest-fromDest);
+
+                if (labels == null || labels.length < max) { 
+                    labels = new byte[max];
+                }
+
+                dst = LabelCodec.encode(destinations, fromDest, toDest, 
+                        labels);
+            } else { 
+                dst = ROUTE_REFERENCE;
+            }
         }
         
-        if (destinationLength > 0) { 
-            wm.writeArray(destinations, fromDest, destinationLength);
+        return silent ? (dst | SILENT_PACKET) : dst;
+    }
+    
+    // Writes the header and destinations of a fragment. The data must be 
+    // written next (see writeData). 
+    void writeHeader(WriteMessage wm, int fromDest, int toDest, boolean silent, 
+            boolean install) throws IOException { 
+        writeHeader(wm, destinationHeader(fromDest, toDest, silent, install));
+    }
+    
+    private void writeHeader(WriteMessage wm, int dst) throws IOException { 
+        
+        // First write the two variable lengths present in the message. Note 
+        // that the second one is the size of the encoded destinations, or a
+        // reference to a route installed earlier.   
+        wm.writeInt(len);                
+        wm.writeInt(dst);
+        
+        wm.writeArray(buffer, off - HEADER, HEADER);
+        
+        // The destinations go before the data, so a receiver knows where to 
+        // forward the data to before it has all of it.  
+        if ((dst & LABEL_MASK) > 0) { 
+            wm.writeArray(labels, 0, dst & LABEL_MASK);
         }                                           
+    }
+    
+    // Writes the data of a fragment. If piece > 0, the data is written in 
+    // pieces of that size, so a receiver can read (and forward) each piece 
+    // separately. Both sides must use the same piece size. 
+    void writeData(WriteMessage wm, int piece) throws IOException { 
+        
+        if (piece <= 0) { 
+            if (len > 0) { 
+                wm.writeArray(buffer, off, len);
+            }
+            return;
+        }
+        
+        for (int done=0;done<len;done+=piece) { 
+            wm.writeArray(buffer, off + done, Math.min(piece, len - done));
+        }
+    }
+    
+    // Writes a fragment, and returns the number of bytes written. 
+    int write(WriteMessage wm, int fromDest, int toDest, boolean silent, 
+            boolean install, int piece) throws IOException { 
+        
+        int dst = destinationHeader(fromDest, toDest, silent, install);
+        
+        if ((dst & LABEL_MASK) == 0 && piece <= 0) { 
+            // The usual case: the header and data are written as they are 
+            // in the buffer, in one go. 
+            wm.writeInt(len);                
+            wm.writeInt(dst);
+            wm.writeArray(buffer, off - HEADER, HEADER + len);
+            return 8 + HEADER + len;
+        }
+        
+        writeHeader(wm, dst);
+        writeData(wm, piece);
+        return 8 + HEADER + (dst & LABEL_MASK) + len;
     }    
 }
@@ -1,26 +1,134 @@
 package mcast.lrm;
 
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A pool of messages.
+ * 
+ * Every thread that uses the cache has a small magazine of free messages of 
+ * its own, so most gets and puts do not need any synchronization. When a 
+ * magazine runs empty, it is refilled with a full one from a shared depot. 
+ * When it overflows, its contents are moved to the depot as a whole. The total
+ * number of cached messages (in all magazines and the depot together) stays 
+ * below the cache size. The magazines of threads that have died are taken 
+ * back: their messages go to the depot (if there is room), and they no longer
+ * count towards the cache size.
+ * 
+ * Optionally, the buffers of all cached messages are carved out of a few 
+ * large arrays (the arena) that are reserved up front. The arena messages are
+ * never discarded, so no buffers need to be allocated while running, and the 
+ * garbage collector sees a few large arrays that it will not move instead of 
+ * many small ones. Messages that do not fit the arena are allocated as usual,
+ * but never cached. The arena messages in the magazines of dead threads are
+ * always taken back, at the latest when the depot runs empty.  
+ * 
+ * The cache may also keep messages of several size classes: the message size,
+ * and a number of smaller sizes (each half the previous one). A request for a
+ * small message then gets one of the smallest class that fits. Each class is 
+ * a separate MessageCache, which gets an equal share of the cache size (and 
+ * of the arena).
+ */
 public class MessageCache {
 
+    private static final int MAX_MAGAZINE_SIZE = 32;
+    
+    private static final int MAX_ARENA_SIZE = 64*1024*1024;
+    
+    // Only used by its own thread, so the statistics are kept here as well. 
+    private static final class Magazine { 
+        
+        // The thread that owns the magazine. 
+        final WeakReference<Thread> owner 
+            = new WeakReference<Thread>(Thread.currentThread());
+        
+        Message head;
+        int size;
+        
+        volatile long hits = 0;
+        volatile long miss = 0;
+        
+        volatile long store = 0;    
+        volatile long discard = 0;
+    }
+    
     private final int MESSAGE_SIZE;
     private final int MAX_SIZE;
-        
-    private Message cache;
-    private int size;
     
+    private final int MAGAZINE_SIZE;
+    
+    private final boolean arena;
+    
+    // The caches for the smaller size classes, smallest last (or null).
+    private final MessageCache [] classes;
+    
+    private final ThreadLocal<Magazine> magazines = new ThreadLocal<Magazine>() {
+        protected Magazine initialValue() {
+            Magazine m = new Magazine();
+            allMagazines.add(m);
+            return m;
+        }
+    };
+    
+    private final CopyOnWriteArrayList<Magazine> allMagazines 
+            = new CopyOnWriteArrayList<Magazine>();
+    
+    // The depot contains full magazines. Each one is a chain of messages.
+    private final Message [] depot;
+    private int depotSize;
+    
+    // The messages taken back from the magazines of dead threads, until they
+    // fill a magazine for the depot.
+    private Message spare;
+    private int spareSize = 0;
+    
+    // The statistics of the magazines that were taken back.
+    private volatile long retiredHits = 0;
+    private volatile long retiredMiss = 0;
+    private volatile long retiredStore = 0;
+    private volatile long retiredDiscard = 0;
+        
    // private long memoryUsage = 0;     
    // private int lowBound = 0;
    // private int highBound = 1024*1024;
-      
-    private long hits = 0;
-    private long miss = 0;
-    
-    private long store = 0;    
-    private long discard = 0;
     
     public MessageCache(int cacheSize, int messageSize) { 
+        this(cacheSize, messageSize, false);
+    }
+    
+    public MessageCache(int cacheSize, int messageSize, boolean arena) { 
+        this(cacheSize, messageSize, arena, 1);
+    }
+    
+    public MessageCache(int cacheSize, int messageSize, boolean arena, 
+            int sizeClasses) { 
+        
+        // The size classes share the cache size equally.
+        if (sizeClasses > 1) { 
+            cacheSize = Math.max(1, cacheSize / sizeClasses);
+        }
+        
         this.MAX_SIZE = cacheSize;
         this.MESSAGE_SIZE = messageSize;
+        this.MAGAZINE_SIZE = Math.max(1, 
+                Math.min(MAX_MAGAZINE_SIZE, cacheSize / 16));
+        this.depot = new Message[cacheSize / MAGAZINE_SIZE + 1];
+        this.arena = arena;
+        
+        if (arena) { 
+            reserveArena();
+        }
+        
+        if (sizeClasses > 1) { 
+            classes = new MessageCache[sizeClasses-1];
+            
+            for (int i=0;i<classes.length;i++) { 
+                classes[i] = new MessageCache(cacheSize, 
+                        Math.max(1, messageSize >> (i+1)), arena);
+            }
+        } else { 
+            classes = null;
+        }
         
         /*
         // fill the cache
@@ -31,36 +139,188 @@ public class MessageCache {
         */
     }
     
-    public synchronized void setDestinationSize(int count) {
-        Message tmp = cache;
-        while(tmp != null) {
-            if(tmp.destinations == null || tmp.destinations.length < count) {
-                tmp.destinations = new short[count];
+    // Creates all messages in the arena, and puts them in the depot.
+    private void reserveArena() { 
+        
+        // Each slot has room for the header in front of the data (see 
+        // Message.HEADER). 
+        int slot = Message.HEADER + MESSAGE_SIZE;
+        int count = (MAX_SIZE / MAGAZINE_SIZE) * MAGAZINE_SIZE;
+        int perArray = Math.max(1, MAX_ARENA_SIZE / slot);
+        
+        byte [] array = null;
+        int used = perArray;
+        
+        Message magazine = null;
+        int size = 0;
+        
+        for (int i=0;i<count;i++) { 
+            if (used == perArray) { 
+                array = new byte[Math.min(perArray, count-i) * slot];
+                used = 0;
             }
             
-            tmp = tmp.next;
+            Message m = new Message(array, 
+                    (used++) * slot + Message.HEADER, MESSAGE_SIZE);
+            m.next = magazine;
+            magazine = m;
+            
+            if (++size == MAGAZINE_SIZE) { 
+                depot[depotSize++] = magazine;
+                magazine = null;
+                size = 0;
+            }
+        }
+    }
+    
+    // Adds a reference to a message that is already referenced by the caller.
+    public void retain(Message m) {
+        m.retain();
+    }
+    
+    // Returns true if someone other than the caller references the message.
+    public boolean isShared(Message m) {
+        return m.refcount > 1;
+    }
+    
+    public void put(Message m) {         
+        
+        if (m.release() != 0) {
+            return;
+        }
+        
+        if (classes != null && m.capacity < MESSAGE_SIZE) { 
+            for (int i=classes.length-1;i>=0;i--) { 
+                if (m.capacity <= classes[i].MESSAGE_SIZE) { 
+                    classes[i].store(m);
+                    return;
+                }
+            }
         }
+        
+        store(m);
     }
     
-    public synchronized void put(Message m) {         
-        m.refcount--;
-        if (m.refcount == 0) {
-            if (size < MAX_SIZE && 
-                    m.buffer != null && m.buffer.length == MESSAGE_SIZE) {
+    // Stores an unreferenced message in this cache, if it has room for it.
+    private void store(Message m) { 
+        
+        Magazine local = magazines.get();
+        
+        boolean cacheable = arena ? m.pooled 
+                : (m.buffer != null && m.capacity == MESSAGE_SIZE);
+        
+        if (!cacheable || (local.size == MAGAZINE_SIZE && !toDepot(local))) { 
+            m.next = null;
+            local.discard++;
+            return;
+        }
+        
+        m.next = local.head;
+        local.head = m;
+        local.size++;
+        local.store++;
+    }
+    
+    // Returns the room for full magazines in the depot. Each thread may also
+    // hold a magazine of its own, which counts towards the cache size.
+    private int room() { 
+        return MAX_SIZE - allMagazines.size() * MAGAZINE_SIZE 
+            - depotSize * MAGAZINE_SIZE - spareSize;
+    }
+    
+    // Moves a full magazine to the depot, if there is room for it.
+    private synchronized boolean toDepot(Magazine local) {
+        
+        // The arena is already limited to the cache size, so we always take 
+        // arena messages back.        
+        if (!arena && room() < MAGAZINE_SIZE) {
+            // Make room by taking back the magazines of dead threads.
+            reclaim();
+            
+            if (room() < MAGAZINE_SIZE) { 
+                return false;
+            }
+        }
+        
+        depot[depotSize++] = local.head;
+        local.head = null;
+        local.size = 0;
+        return true;
+    }
+    
+    // Takes back the magazines of the threads that have died. Their messages
+    // are kept as far as there is room for them.
+    private void reclaim() { 
+        
+        for (Magazine m : allMagazines) { 
+            Thread t = m.owner.get();
+            
+            if (t != null && t.isAlive()) { 
+                continue;
+            }
+            
+            allMagazines.remove(m);
+            
+            retiredHits += m.hits;
+            retiredMiss += m.miss;
+            retiredStore += m.store;
+            retiredDiscard += m.discard;
+            
+            while (m.head != null) { 
+                Message tmp = m.head;
+                m.head = tmp.next;
+                m.size--;
                 
-                m.next = cache;
-                cache = m;
-                size++;
-                store++;
-            } else {      
-                m.next = null;
-                discard++;
-            }        
+                if (arena || room() > 0) { 
+                    addSpare(tmp);
+                } else { 
+                    tmp.next = null;
+                }
+            }
+        }
+    }
+    
+    private void addSpare(Message m) { 
+        
+        m.next = spare;
+        spare = m;
+        
+        if (++spareSize == MAGAZINE_SIZE) { 
+            depot[depotSize++] = spare;
+            spare = null;
+            spareSize = 0;
+        }
+    }
+    
+    // Takes a full magazine from the depot, if there is one.
+    private synchronized boolean fromDepot(Magazine local) {
+
+        if (depotSize == 0 && arena) { 
+            // The arena messages are never discarded, so any that are left
+            // are in the magazines of dead threads (or in use).
+            reclaim();
+        }
+        
+        if (depotSize == 0) { 
+            if (spareSize == 0) { 
+                return false;
+            }
+            
+            local.head = spare;
+            local.size = spareSize;
+            spare = null;
+            spareSize = 0;
+            return true;
         }
+        
+        local.head = depot[--depotSize];
+        local.size = MAGAZINE_SIZE;
+        depot[depotSize] = null;
+        return true;
     }
     
     /*
-    public synchronized Message get(short sender, short [] destinations, 
+    public synchronized Message get(int sender, int [] destinations, 
             int id, int num, byte [] message, int off, int len, boolean local) { 
         
         if (size == 0) { 
@@ -92,7 +352,7 @@ public class MessageCache {
         
         if (m.destinations == null || m.destinations.length != dst) {
             // TODO optimize!
-            m.destinations = new short[dst];
+            m.destinations = new int[dst];
         } 
         
         return m;
@@ -103,28 +363,40 @@ public class MessageCache {
     public Message get(int len) {        
         if (len > MESSAGE_SIZE) { 
             // System.err.println("Creating new message of size " + len);
-            miss++;
+            magazines.get().miss++;
             return new Message(len);
         }
+        
+        if (classes != null) { 
+            for (int i=classes.length-1;i>=0;i--) { 
+                if (len <= classes[i].MESSAGE_SIZE) { 
+                    return classes[i].get();
+                }
+            }
+        }
                 
         return get();               
     }
 
-    public synchronized Message get() {
+    public Message get() {
         Message tmp = null;
 
-        if (size == 0) {
-            miss++;
+        Magazine local = magazines.get();
+        
+        if (local.size == 0 && !fromDepot(local)) {
+            local.miss++;
             tmp =  new Message(MESSAGE_SIZE);
         } else {
-            hits++;
+            local.hits++;
             
-            tmp = cache;
-            cache = cache.next;
-            size--;
+            tmp = local.head;
+            local.head = tmp.next;
+            local.size--;
         }
         tmp.next = null;
         tmp.local = false;
+        tmp.silent = false;
+        tmp.upstream = -1;
         tmp.refcount = 1;
 
         return tmp;               
@@ -134,4 +406,56 @@ public class MessageCache {
     public int getPrefferedMessageSize() {
         return MESSAGE_SIZE;
     }
+    
+    public long getHits() { 
+        long result = retiredHits;
+        for (Magazine m : allMagazines) { 
+            result += m.hits;
+        }
+        if (classes != null) { 
+            for (int i=0;i<classes.length;i++) { 
+                result += classes[i].getHits();
+            }
+        }
+        return result;
+    }
+    
+    public long getMisses() { 
+        long result = retiredMiss;
+        for (Magazine m : allMagazines) { 
+            result += m.miss;
+        }
+        if (classes != null) { 
+            for (int i=0;i<classes.length;i++) { 
+                result += classes[i].getMisses();
+            }
+        }
+        return result;
+    }
+    
+    public long getStored() { 
+        long result = retiredStore;
+        for (Magazine m : allMagazines) { 
+            result += m.store;
+        }
+        if (classes != null) { 
+            for (int i=0;i<classes.length;i++) { 
+                result += classes[i].getStored();
+            }
+        }
+        return result;
+    }
+    
+    public long getDiscarded() { 
+        long result = retiredDiscard;
+        for (Magazine m : allMagazines) { 
+            result += m.discard;
+        }
+        if (classes != null) { 
+            for (int i=0;i<classes.length;i++) { 
+                result += classes[i].getDiscarded();
+            }
+        }
+        return result;
+    }
 }
@@ -1,97 +1,326 @@
 package mcast.lrm;
 
-// import ibis.util.Timer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * A bounded multi-producer/single-consumer queue of messages.
+ *
+ * The messages are kept in an array used as a ring buffer. Producers claim a
+ * slot by advancing the tail with a CAS and then publish the message in that
+ * slot; the (single) consumer takes messages from the head. No locks are used
+ * on the normal path. Threads only park when the queue is empty (the consumer)
+ * or full (a producer), and are only unparked on the transitions out of those
+ * states.
+ *
+ * Producers that should not block on a full ring (such as the Ibis upcall
+ * thread) use offer instead of enqueue. If the ring is full, offer appends the
+ * message to a spill list and returns immediately. Once anything has been
+ * spilled, all offered messages go to the spill list, which keeps the messages
+ * of each producer in order. Whenever the consumer takes a message from the
+ * ring, it moves spilled messages into the free slots, so the producers go
+ * back to the ring as soon as the spill list is empty again.
+ *
+ * The spill list is not bounded, since offer must never block: in the upcall
+ * that would stop reading from all incoming connections, which may deadlock
+ * nodes that forward to each other. The nodes upstream are held back by flow
+ * control instead (lrmc.credits): the LableRoutingMulticast only returns the
+ * credit for a message when it is accepted into the ring, so the spill list
+ * never holds more messages than the credits of the incoming connections.
+ */
 public class MessageQueue {
 
     private final int limit;
-    
-    private Message head; 
-    private Message tail; 
-    
-    private int size = 0;
+    private final int mask;
 
-    private boolean finish = false;
+    private final AtomicReferenceArray<Message> slots;
 
-    // Timer enqueueTimer = Timer.createTimer();
+    // The next slot to dequeue from, only written by the consumer.
+    private final AtomicLong head = new AtomicLong(0);
 
-    public MessageQueue() { 
-        // no limit...
-        this(Integer.MAX_VALUE);
-    }
-    
-    public MessageQueue(int limit) { 
+    // The next slot to enqueue to, claimed by the producers.
+    private final AtomicLong tail = new AtomicLong(0);
+
+    private volatile Thread consumer;
+    private volatile boolean consumerWaiting = false;
+
+    private final ConcurrentLinkedQueue<Thread> producersWaiting
+            = new ConcurrentLinkedQueue<Thread>();
+
+    private volatile boolean finish = false;
+
+    // The spill list, protected by spillLock. Uses the next field of the
+    // messages.
+    private final Object spillLock = new Object();
+
+    private Message spillHead;
+    private Message spillTail;
+
+    private volatile boolean spilling = false;
+
+    private long spilled = 0;
+    private int maxSpillSize = 0;
+    private int spillSize = 0;
+
+    public MessageQueue(int limit) {
         this.limit = limit;
+
+        int size = 1;
+
+        while (size < limit) {
+            size <<= 1;
+        }
+
+        mask = size-1;
+        slots = new AtomicReferenceArray<Message>(size);
     }
 
-    public synchronized void terminate() {
+    public void terminate() {
         finish = true;
-//        System.out.println("lrmc: wait " + enqueueTimer.nrTimes()
-//                + " times, total " + Timer.format(enqueueTimer.totalTimeVal()));
-        notifyAll();
+
+        Thread tmp = consumer;
+
+        if (tmp != null) {
+            LockSupport.unpark(tmp);
+        }
+
+        wakeProducers();
     }
-    
-    public synchronized int size() { 
-        return size;
+
+    public int size() {
+
+        int tmp = (int) (tail.get() - head.get());
+
+        synchronized (spillLock) {
+            return tmp + spillSize;
+        }
     }
-    
-    public synchronized void enqueue(Message m) { 
-
-        while (! finish && size >= limit) {            
-            // enqueueTimer.start();
-            try {
-                wait();
-            } catch(Exception e) {
-                // Ignored
-            // } finally {
-            //     enqueueTimer.stop();
-            }
+
+    /**
+     * Returns the number of messages that did not fit in the ring and were
+     * spilled.
+     */
+    public long getSpilled() {
+        synchronized (spillLock) {
+            return spilled;
+        }
+    }
+
+    /**
+     * Returns the largest number of messages in the spill list so far.
+     */
+    public int getMaxSpillSize() {
+        synchronized (spillLock) {
+            return maxSpillSize;
         }
+    }
 
-        if (finish) {
+    /**
+     * Called when a message gets a slot in the ring, before the consumer can
+     * see it. Spilled messages only get here when they are moved into the
+     * ring. Does nothing by default.
+     */
+    protected void accepted(Message m) {
+    }
+
+    private void wakeProducers() {
+        for (Thread t : producersWaiting) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    public void enqueue(Message m) {
+
+        if (spilling) {
+            // Do not overtake the spilled messages.
+            offer(m);
             return;
         }
 
-        if (head == null) { 
-            head = tail = m;
-            m.next = null;
-            notifyAll();
-        } else { 
-            tail.next = m;
-            tail = m;            
-        }
-        
-        size++;
-        
-//        System.err.println("enqueue, q size = " + size);
+        long t;
+
+        while (true) {
+            if (finish) {
+                return;
+            }
+
+            t = tail.get();
+
+            if (t - head.get() < limit) {
+                if (tail.compareAndSet(t, t+1)) {
+                    break;
+                }
+                continue;
+            }
+
+            // The queue is full, so wait until the consumer makes room. We
+            // register before checking again, so the consumer cannot miss us.
+            Thread me = Thread.currentThread();
+            producersWaiting.add(me);
+
+            if (!finish && tail.get() - head.get() >= limit) {
+                LockSupport.park(this);
+            }
+
+            producersWaiting.remove(me);
+        }
+
+        m.next = null;
+        accepted(m);
+        slots.set((int) t & mask, m);
+
+        if (consumerWaiting) {
+            // The queue was empty.
+            LockSupport.unpark(consumer);
+        }
     }
-    
-    public synchronized Message dequeue() { 
-
-        while (size == 0 && ! finish) { 
-            try {
-                wait();
-            } catch(Exception e) {
-                // Ignored
+
+    // Tries to put a message in the ring without blocking.
+    private boolean tryEnqueue(Message m) {
+
+        long t;
+
+        do {
+            t = tail.get();
+
+            if (t - head.get() >= limit) {
+                return false;
             }
+        } while (!tail.compareAndSet(t, t+1));
+
+        m.next = null;
+        accepted(m);
+        slots.set((int) t & mask, m);
+
+        if (consumerWaiting) {
+            LockSupport.unpark(consumer);
         }
 
+        return true;
+    }
+
+    /**
+     * Adds a message to the queue without blocking on a full ring. If the
+     * ring is full, the message is spilled. Never blocks.
+     *
+     * @return true if the message was put in the queue, false if it was
+     * spilled
+     */
+    public boolean offer(Message m) {
+
         if (finish) {
-            return null;
+            return true;
+        }
+
+        if (!spilling && tryEnqueue(m)) {
+            return true;
+        }
+
+        synchronized (spillLock) {
+            // The consumer may have drained the spill list in the mean time.
+            if (spillHead == null && tryEnqueue(m)) {
+                return true;
+            }
+
+            m.next = null;
+
+            if (spillHead == null) {
+                spillHead = spillTail = m;
+            } else {
+                spillTail.next = m;
+                spillTail = m;
+            }
+
+            spilling = true;
+            spilled++;
+
+            if (++spillSize > maxSpillSize) {
+                maxSpillSize = spillSize;
+            }
         }
 
-        Message tmp = head;         
-        head = head.next;
-        tmp.next = null;
-        
-        size--;
-//        System.err.println("dequeue, q size = " + size);
+        if (consumerWaiting) {
+            LockSupport.unpark(consumer);
+        }
+
+        return false;
+    }
+
+    // Moves spilled messages into the free slots of the ring, oldest first.
+    // Only called by the consumer.
+    private void refill() {
+
+        synchronized (spillLock) {
+            while (spillHead != null) {
+                Message m = spillHead;
+                Message next = m.next;
+
+                if (!tryEnqueue(m)) {
+                    break;
+                }
 
-        if (size == limit-1) { 
-            notifyAll();
+                spillHead = next;
+                spillSize--;
+            }
+
+            if (spillHead == null) {
+                spillTail = null;
+                spilling = false;
+            }
         }
-        
-        return tmp;
     }
 
+    public Message dequeue() {
+
+        consumer = Thread.currentThread();
+
+        while (true) {
+            if (finish) {
+                return null;
+            }
+
+            long h = head.get();
+            int index = (int) h & mask;
+
+            Message tmp = slots.get(index);
+
+            if (tmp != null) {
+                slots.lazySet(index, null);
+                head.set(h+1);
+
+                if (spilling) {
+                    // The spilled messages get the free slot first.
+                    refill();
+                }
+
+                if (!producersWaiting.isEmpty()) {
+                    // The queue was full.
+                    wakeProducers();
+                }
+
+                return tmp;
+            }
+
+            // Only move spilled messages if the ring is really empty. If a
+            // producer has claimed the slot but not filled it yet, the spill
+            // list may contain messages that were offered after it.
+            if (spilling && h == tail.get()) {
+                refill();
+                continue;
+            }
+
+            // The queue is empty (or a producer has claimed the slot but not
+            // filled it yet). Announce that we are waiting before checking
+            // again, so the producer cannot miss us.
+            consumerWaiting = true;
+
+            if (!finish && slots.get(index) == null && !spilling) {
+                LockSupport.park(this);
+            }
+
+            consumerWaiting = false;
+        }
+    }
 }
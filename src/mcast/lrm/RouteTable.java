@@ -0,0 +1,73 @@
+package mcast.lrm;
+
+import mcast.util.DynamicObjectArray;
+
+/**
+ * Table of installed routes, indexed by sender and route ID.
+ *
+ * A route ID consists of a small slot number in the lowest SLOT_BITS bits and
+ * an epoch in the remaining bits. The sender picks a new epoch whenever its
+ * destination set changes. Only the first fragment sent over a link with a
+ * given route carries the labels; the receiver installs them here and all
+ * later fragments that refer to the same route share the same label array.
+ *
+ * The same table is used at the sending side of each link to remember which
+ * routes have already been installed at the other end.
+ */
+final class RouteTable {
+
+    static final int SLOT_BITS = 4;
+    static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+
+    static final class Route {
+
+        final int id;
+        final int [] labels;
+        final int count;
+
+        Route(int id, int [] labels, int count) {
+            this.id = id;
+            this.labels = labels;
+            this.count = count;
+        }
+    }
+
+    private final DynamicObjectArray senders = new DynamicObjectArray();
+
+    synchronized Route get(int sender, int route) {
+
+        Route [] slots = (Route []) senders.get(sender);
+
+        if (slots == null) {
+            return null;
+        }
+
+        Route r = slots[route & SLOT_MASK];
+
+        if (r == null || r.id != route) {
+            return null;
+        }
+
+        return r;
+    }
+
+    synchronized Route put(int sender, int route, int [] labels, int count) {
+
+        Route [] slots = (Route []) senders.get(sender);
+
+        if (slots == null) {
+            slots = new Route[SLOT_MASK+1];
+            senders.put(sender, slots);
+        }
+
+        Route r = new Route(route, labels, count);
+        slots[route & SLOT_MASK] = r;
+        return r;
+    }
+
+    synchronized void remove(int sender) {
+        if (sender <= senders.last()) {
+            senders.remove(sender);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package mcast.lrm;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+
+import mcast.util.IntObjectMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Finds the members that are too slow to forward fragments, so the sender can
+ * move them to the tail of its chain, where they do not have to forward
+ * anything.
+ *
+ * Every INTERVAL ms, each member reports to the senders whose fragments it
+ * forwarded in that interval. The report contains its capacity, that is, the
+ * number of bytes it forwards per ms of forwarding time, and the number of
+ * fragments waiting in its send queue. A member is slow if its capacity is
+ * well below the median of all members, or if its queue is half full. If it
+ * is slow in PERSISTENCE reports in a row, it is a straggler until a report
+ * says otherwise.
+ *
+ * A slow member also makes its predecessors look slow, since their writes to
+ * it block and their queues fill up. When the chain is ordered, only the last
+ * straggler of each run of stragglers is therefore moved to the tail.
+ */
+final class Stragglers {
+
+    private static final Logger logger = Logger.getLogger(Stragglers.class);
+
+    // A member is slow if its capacity is less than this times the median.
+    private static final double SLOW_FACTOR = 0.5;
+
+    private static final int PERSISTENCE = 3;
+
+    // The weight of a new report in the running averages.
+    private static final double ALPHA = 0.5;
+
+    private static final class Member {
+        double capacity = 0;
+        double queued = 0;
+        int slow = 0;
+        boolean straggler = false;
+    }
+
+    private final ConnectionManager connections;
+
+    private final long interval;
+    private final int queueLimit;
+
+    // The members that report to us.
+    private final IntObjectMap members = new IntObjectMap();
+
+    private double median = 0;
+    private long medianTime = 0;
+
+    // Set when the stragglers have changed since the chain was last ordered.
+    private boolean changed = false;
+
+    private long moves = 0;
+
+    // What we forwarded in the current interval, and for which senders.
+    private long bytes = 0;
+    private long busy = 0;
+    private int maxQueued = 0;
+    private final IntObjectMap senders = new IntObjectMap();
+
+    // The task that sends the reports.
+    private ScheduledFuture<?> reporter;
+    private boolean finish = false;
+
+    Stragglers(ConnectionManager connections, long interval, int queueSize) {
+        this.connections = connections;
+        this.interval = interval;
+        this.queueLimit = Math.max(1, queueSize / 2);
+    }
+
+    synchronized void start() {
+
+        if (finish) {
+            return;
+        }
+
+        reporter = connections.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                report();
+            }
+        }, interval);
+    }
+
+    /**
+     * Stops sending reports.
+     */
+    synchronized void terminate() {
+
+        finish = true;
+
+        if (reporter != null) {
+            reporter.cancel(false);
+            reporter = null;
+        }
+    }
+
+    /**
+     * Records that we forwarded a fragment of 'sender' of the given size,
+     * which took 'time' ns, after which 'queued' fragments were waiting.
+     */
+    synchronized void forwarded(int sender, int len, long time, int queued) {
+
+        bytes += len;
+        busy += time;
+
+        if (queued > maxQueued) {
+            maxQueued = queued;
+        }
+
+        if (sender != -1 && senders.get(sender) == null) {
+            senders.put(sender, Boolean.TRUE);
+        }
+    }
+
+    private void report() {
+
+        int [] targets;
+        float capacity;
+        int queued;
+
+        synchronized (this) {
+            if (finish || senders.size() == 0) {
+                return;
+            }
+
+            targets = new int[senders.size()];
+            int count = 0;
+
+            for (int i=0;i<senders.capacity();i++) {
+                if (senders.value(i) != null) {
+                    targets[count++] = senders.key(i);
+                }
+            }
+
+            capacity = busy == 0 ? 0 : (float) (bytes * 1000000.0 / busy);
+            queued = maxQueued;
+
+            bytes = busy = 0;
+            maxQueued = 0;
+            senders.clear();
+        }
+
+        for (int i=0;i<targets.length;i++) {
+            connections.get(targets[i]).sendReport(capacity, queued);
+        }
+    }
+
+    /**
+     * Handles a report from the given member.
+     */
+    synchronized void gotReport(int from, float capacity, int queued) {
+
+        if (from == -1) {
+            return;
+        }
+
+        Member m = (Member) members.get(from);
+
+        if (m == null) {
+            m = new Member();
+            members.put(from, m);
+        }
+
+        if (capacity > 0) {
+            m.capacity = m.capacity == 0 ? capacity
+                    : m.capacity + ALPHA * (capacity - m.capacity);
+        }
+
+        m.queued += ALPHA * (queued - m.queued);
+
+        long now = System.currentTimeMillis();
+
+        if (now - medianTime > interval) {
+            median = median();
+            medianTime = now;
+        }
+
+        boolean slow = (m.capacity > 0 && m.capacity < SLOW_FACTOR * median)
+            || m.queued >= queueLimit;
+
+        if (!slow) {
+            m.slow = 0;
+
+            if (m.straggler) {
+                logger.info("Member " + from + " is no longer a straggler");
+                m.straggler = false;
+                changed = true;
+            }
+        } else if (++m.slow >= PERSISTENCE && !m.straggler) {
+            logger.info("Member " + from + " is a straggler (capacity "
+                    + m.capacity + " bytes/ms, median " + median + ", "
+                    + m.queued + " queued)");
+            m.straggler = true;
+            changed = true;
+        }
+    }
+
+    private double median() {
+
+        double [] tmp = new double[members.size()];
+        int count = 0;
+
+        for (int i=0;i<members.capacity();i++) {
+            Member m = (Member) members.value(i);
+
+            if (m != null && m.capacity > 0) {
+                tmp[count++] = m.capacity;
+            }
+        }
+
+        if (count == 0) {
+            return 0;
+        }
+
+        Arrays.sort(tmp, 0, count);
+        return tmp[count/2];
+    }
+
+    private boolean straggler(int id) {
+        Member m = (Member) members.get(id);
+        return m != null && m.straggler;
+    }
+
+    /**
+     * Returns true if the stragglers changed since the last call to order().
+     */
+    synchronized boolean changed() {
+        return changed;
+    }
+
+    /**
+     * Moves the stragglers that hold up the chain to its tail, slowest last.
+     * The other destinations keep their order.
+     *
+     * @return true if the order was changed
+     */
+    synchronized boolean order(int [] destinations) {
+
+        changed = false;
+
+        final int n = destinations.length;
+
+        int [] before = destinations.clone();
+        int [] tail = new int[n];
+        int moved = 0;
+        int kept = 0;
+
+        for (int i=0;i<n;i++) {
+            int id = destinations[i];
+
+            // A straggler followed by another one may just be waiting for
+            // it, so we leave it where it is.
+            if (id != -1 && straggler(id)
+                    && (i == n-1 || !straggler(before[i+1]))) {
+                tail[moved++] = id;
+            } else {
+                destinations[kept++] = id;
+            }
+        }
+
+        if (moved == 0) {
+            return false;
+        }
+
+        // Slowest last.
+        for (int i=1;i<moved;i++) {
+            int id = tail[i];
+            double c = ((Member) members.get(id)).capacity;
+            int j = i;
+
+            while (j > 0 && ((Member) members.get(tail[j-1])).capacity < c) {
+                tail[j] = tail[j-1];
+                j--;
+            }
+
+            tail[j] = id;
+        }
+
+        System.arraycopy(tail, 0, destinations, kept, moved);
+
+        if (Arrays.equals(before, destinations)) {
+            return false;
+        }
+
+        moves++;
+        return true;
+    }
+
+    /**
+     * Forgets the reports of the given member, since its ID may be reused.
+     */
+    synchronized void remove(int id) {
+
+        Member m = (Member) members.remove(id);
+
+        if (m != null && m.straggler) {
+            changed = true;
+        }
+    }
+
+    synchronized long getMoves() {
+        return moves;
+    }
+}
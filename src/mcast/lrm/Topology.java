@@ -0,0 +1,637 @@
+package mcast.lrm;
+
+import ibis.ipl.ReadMessage;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import mcast.util.IntObjectMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Measures the cost of sending a fragment between each pair of members, and
+ * uses it to find a good chain order.
+ *
+ * Every PROBE_INTERVAL ms, each member sends two probes through the normal
+ * multicast ports: a small one to measure the round trip time, and one
+ * carrying PROBE_SIZE bytes to estimate the bandwidth. The cost of a hop is the
+ * one-way latency plus the time needed to transfer a fragment. To keep the
+ * probing traffic linear in the number of members, a member only probes its
+ * neighbours in the ring of member IDs and a few (lrmc.probePeers) random
+ * others, which differ each round. The rows of the cost matrix are spread by
+ * gossip: each round, a member sends the members it probed its own row and
+ * a few (ROWS) others it knows, picked at random. The rows then reach every
+ * member in a number of rounds that grows with the logarithm of the number of
+ * members, while each member only sends a bounded number of rows per round,
+ * to members it is connected to anyway.
+ *
+ * A chain is ordered by starting at the sender and repeatedly going to the
+ * nearest member not visited yet, after which the order is improved with 2-opt
+ * moves. Since 2-opt reverses parts of the chain, it uses the average of the
+ * costs in both directions. A hop that has not been measured is assumed to be
+ * as expensive as the most expensive one that has. The order of a set of
+ * destinations is kept until the next probing round.
+ */
+public final class Topology extends Thread {
+
+    private static final Logger logger = Logger.getLogger(Topology.class);
+
+    private static final int PROBE_SIZE = 64*1024;
+
+    // The number of rows of the cost matrix sent to each probed member per
+    // round, including our own.
+    private static final int ROWS = 4;
+
+    // The weight of a new measurement in the running averages.
+    private static final double ALPHA = 0.5;
+
+    private final LableRoutingMulticast lrmc;
+    private final ConnectionManager connections;
+
+    private final long interval;
+    private final int fragmentSize;
+    private final int peers;
+
+    private final byte [] payload = new byte[PROBE_SIZE];
+
+    // The payload of the probes we get is read into this buffer, and dropped.
+    private final Object sinkLock = new Object();
+    private byte [] sink;
+
+    private final Random random = new Random();
+
+    // The orderings computed since the last probing round, by hash of the
+    // start and destinations (see Ordering). The version is increased every
+    // round, which makes the cached orderings stale.
+    private final IntObjectMap orderings = new IntObjectMap();
+    private int version = 0;
+
+    private static final class Ordering {
+
+        final int start;
+        final int [] set;
+        final int [] order;
+        final int version;
+
+        // The next ordering with the same hash.
+        Ordering next;
+
+        Ordering(int start, int [] set, int [] order, int version,
+                Ordering next) {
+            this.start = start;
+            this.set = set;
+            this.order = order;
+            this.version = version;
+            this.next = next;
+        }
+    }
+
+    // The costs (in ms) of sending a fragment from i to j, or 0 if unknown.
+    private float [][] cost = new float[0][];
+
+    // Our own measurements, indexed by member.
+    private double [] rtt = new double[0];
+    private double [] transfer = new double[0];
+
+    private boolean finish = false;
+
+    Topology(LableRoutingMulticast lrmc, ConnectionManager connections,
+            long interval, int peers, int fragmentSize, String name) {
+
+        super("LableRoutingMulticast:" + name + ":topology");
+        setDaemon(true);
+
+        this.lrmc = lrmc;
+        this.connections = connections;
+        this.interval = interval;
+        this.peers = Math.max(0, peers);
+        this.fragmentSize = fragmentSize;
+    }
+
+    public void run() {
+
+        int round = 0;
+
+        while (true) {
+            synchronized (this) {
+                if (finish) {
+                    return;
+                }
+            }
+
+            int [] members = lrmc.getMembers();
+            int me = lrmc.getMyID();
+
+            if (me != -1) {
+                int [] peers = sample(me, members);
+                probe(me, peers, round++);
+                sendCosts(me, peers);
+            }
+
+            synchronized (this) {
+                version++;
+
+                try {
+                    if (!finish) {
+                        wait(interval);
+                    }
+                } catch (InterruptedException e) {
+                    // ignored
+                }
+            }
+        }
+    }
+
+    synchronized void terminate() {
+        finish = true;
+        notifyAll();
+    }
+
+    // Returns the members to probe this round: our neighbours in the ring of
+    // member IDs, and up to 'peers' others picked at random.
+    private int [] sample(int me, int [] members) {
+
+        int n = members.length;
+        int self = Arrays.binarySearch(members, me);
+
+        if (self < 0 || n <= peers + 3) {
+            return members;
+        }
+
+        int [] result = new int[peers + 2];
+        int count = 0;
+
+        result[count++] = members[(self + n - 1) % n];
+        result[count++] = members[(self + 1) % n];
+
+        while (count < result.length) {
+            int m = members[random.nextInt(n)];
+            boolean taken = (m == me);
+
+            for (int i=0;i<count && !taken;i++) {
+                taken = (result[i] == m);
+            }
+
+            if (!taken) {
+                result[count++] = m;
+            }
+        }
+
+        return result;
+    }
+
+    private void probe(int me, int [] members, int round) {
+
+        for (int i=0;i<members.length;i++) {
+            if (members[i] != me) {
+                Connection c = connections.get(members[i]);
+                long time = System.nanoTime();
+
+                // The small probe measures the latency, the large one the
+                // bandwidth. We always send them in that order.
+                c.sendProbe(2*round, time, payload, 0);
+                c.sendProbe(2*round+1, time, payload, PROBE_SIZE);
+            }
+        }
+    }
+
+    // Sends our own row of the cost matrix and up to ROWS-1 rows of others, 
+    // picked at random, to the given members.
+    private void sendCosts(int me, int [] members) {
+
+        int [] owners = new int[ROWS];
+        int [][] ids = new int[ROWS][];
+        float [][] rows = new float[ROWS][];
+        int count = 0;
+
+        synchronized (this) {
+            if (me < cost.length && cost[me] != null) {
+                owners[count++] = me;
+            }
+
+            // Pick the others with a partial shuffle of the known rows.
+            int [] known = new int[cost.length];
+            int n = 0;
+
+            for (int i=0;i<cost.length;i++) {
+                if (i != me && cost[i] != null) {
+                    known[n++] = i;
+                }
+            }
+
+            while (count < ROWS && n > 0) {
+                int r = random.nextInt(n);
+                owners[count++] = known[r];
+                known[r] = known[--n];
+            }
+
+            int used = 0;
+
+            for (int r=0;r<count;r++) {
+                float [] tmp = cost[owners[r]];
+                int entries = 0;
+
+                for (int i=0;i<tmp.length;i++) {
+                    if (tmp[i] > 0) {
+                        entries++;
+                    }
+                }
+
+                if (entries == 0) {
+                    continue;
+                }
+
+                owners[used] = owners[r];
+                ids[used] = new int[entries];
+                rows[used] = new float[entries];
+                entries = 0;
+
+                for (int i=0;i<tmp.length;i++) {
+                    if (tmp[i] > 0) {
+                        ids[used][entries] = i;
+                        rows[used][entries++] = tmp[i];
+                    }
+                }
+
+                used++;
+            }
+
+            count = used;
+        }
+
+        for (int i=0;i<members.length;i++) {
+            if (members[i] == me) {
+                continue;
+            }
+
+            Connection c = connections.get(members[i]);
+
+            for (int r=0;r<count;r++) {
+                if (owners[r] != members[i]) {
+                    c.sendCosts(owners[r], ids[r], rows[r]);
+                }
+            }
+        }
+    }
+
+    private void grow(int id) {
+
+        if (id < rtt.length) {
+            return;
+        }
+
+        int size = Math.max(2*rtt.length, id+1);
+
+        double [] tmp = new double[size];
+        System.arraycopy(rtt, 0, tmp, 0, rtt.length);
+        rtt = tmp;
+
+        tmp = new double[size];
+        System.arraycopy(transfer, 0, tmp, 0, transfer.length);
+        transfer = tmp;
+    }
+
+    private float [] row(int id) {
+
+        if (id >= cost.length) {
+            float [][] tmp = new float[Math.max(2*cost.length, id+1)][];
+            System.arraycopy(cost, 0, tmp, 0, cost.length);
+            cost = tmp;
+        }
+
+        if (cost[id] == null) {
+            cost[id] = new float[Math.max(cost.length, id+1)];
+        }
+
+        return cost[id];
+    }
+
+    private void set(int from, int to, float value) {
+
+        float [] r = row(from);
+
+        if (to >= r.length) {
+            float [] tmp = new float[Math.max(2*r.length, to+1)];
+            System.arraycopy(r, 0, tmp, 0, r.length);
+            cost[from] = r = tmp;
+        }
+
+        r[to] = value;
+    }
+
+    private float get(int from, int to) {
+
+        if (from >= cost.length || cost[from] == null
+                || to >= cost[from].length) {
+            return 0;
+        }
+
+        return cost[from][to];
+    }
+
+    /**
+     * Handles a probe from 'from'. The reply is sent by another thread, so
+     * the upcall does not block on it.
+     */
+    void gotProbe(final int from, ReadMessage rm) throws IOException {
+
+        final int seq = rm.readInt();
+        final long time = rm.readLong();
+        int len = rm.readInt();
+
+        if (len > 0) {
+            // The payload is only there to measure the bandwidth.
+            synchronized (sinkLock) {
+                if (sink == null || sink.length < len) {
+                    sink = new byte[len];
+                }
+                rm.readArray(sink, 0, len);
+            }
+        }
+
+        rm.finish();
+
+        if (from == -1) {
+            return;
+        }
+
+        connections.execute(new Runnable() {
+            public void run() {
+                connections.get(from).sendProbeReply(seq, time);
+            }
+        });
+    }
+
+    void gotProbeReply(int from, ReadMessage rm) throws IOException {
+
+        int seq = rm.readInt();
+        long time = rm.readLong();
+        rm.finish();
+
+        if (from == -1) {
+            return;
+        }
+
+        double ms = (System.nanoTime() - time) / 1000000.0;
+        int me = lrmc.getMyID();
+
+        synchronized (this) {
+            grow(from);
+
+            if (seq % 2 == 0) {
+                rtt[from] = rtt[from] == 0 ? ms
+                        : rtt[from] + ALPHA * (ms - rtt[from]);
+                return;
+            }
+
+            // The large probe was sent right after the small one with the
+            // same time stamp, so the difference is the time needed for the
+            // payload.
+            if (rtt[from] == 0) {
+                return;
+            }
+
+            double t = Math.max(ms - rtt[from], 0.001);
+            transfer[from] = transfer[from] == 0 ? t
+                    : transfer[from] + ALPHA * (t - transfer[from]);
+
+            if (me != -1) {
+                set(me, from, (float) (rtt[from] / 2
+                        + transfer[from] * fragmentSize / PROBE_SIZE));
+            }
+        }
+    }
+
+    void gotCosts(int from, ReadMessage rm) throws IOException {
+
+        int owner = rm.readInt();
+        int count = rm.readInt();
+        int [] ids = new int[count];
+        float [] row = new float[count];
+        rm.readArray(ids);
+        rm.readArray(row);
+        rm.finish();
+
+        // We know our own row best. 
+        if (from == -1 || owner < 0 || owner == lrmc.getMyID()) {
+            return;
+        }
+
+        synchronized (this) {
+            for (int i=0;i<count;i++) {
+                set(owner, ids[i], row[i]);
+            }
+        }
+    }
+
+    // Forgets the measurements of a member that left, since its ID may be
+    // reused.
+    synchronized void remove(int id) {
+
+        if (id < rtt.length) {
+            rtt[id] = 0;
+            transfer[id] = 0;
+        }
+
+        if (id < cost.length) {
+            cost[id] = null;
+        }
+
+        for (int i=0;i<cost.length;i++) {
+            if (cost[i] != null && id < cost[i].length) {
+                cost[i][id] = 0;
+            }
+        }
+
+        version++;
+    }
+
+    /**
+     * Returns the measured cost (in ms) of sending a fragment from member
+     * 'from' to member 'to', or 0 if it is not known.
+     */
+    public synchronized float getCost(int from, int to) {
+        return get(from, to);
+    }
+
+    /**
+     * Returns a copy of the cost matrix, indexed by member ID. Unknown costs
+     * are 0.
+     */
+    public synchronized float [][] getCostMatrix() {
+
+        int size = cost.length;
+
+        for (int i=0;i<cost.length;i++) {
+            if (cost[i] != null) {
+                size = Math.max(size, cost[i].length);
+            }
+        }
+
+        float [][] result = new float[size][size];
+
+        for (int i=0;i<cost.length;i++) {
+            if (cost[i] != null) {
+                System.arraycopy(cost[i], 0, result[i], 0, cost[i].length);
+            }
+        }
+
+        return result;
+    }
+
+    // The cost used for ordering: the average of both directions, or 0 if
+    // neither is known.
+    private float symmetric(int a, int b) {
+
+        float ab = get(a, b);
+        float ba = get(b, a);
+
+        if (ab == 0) {
+            return ba;
+        } else if (ba == 0) {
+            return ab;
+        }
+
+        return (ab + ba) / 2;
+    }
+
+    // The cost of a hop in the chain, or 'unknown' if it was not measured.
+    private float hop(int a, int b, float unknown) {
+        float c = symmetric(a, b);
+        return c == 0 ? unknown : c;
+    }
+
+    private static int hash(int start, int [] set) {
+        return 31 * Arrays.hashCode(set) + start;
+    }
+
+    /**
+     * Orders the destinations into a cheap chain starting at 'start'.
+     *
+     * @return false (and leaves the destinations alone) if none of the costs
+     * of the hops are known.
+     */
+    synchronized boolean order(int start, int [] destinations) {
+
+        int [] set = destinations.clone();
+        Arrays.sort(set);
+
+        int hash = hash(start, set);
+        Ordering first = (Ordering) orderings.get(hash);
+
+        for (Ordering o = first;o != null;o = o.next) {
+            if (o.version == version && o.start == start
+                    && Arrays.equals(o.set, set)) {
+                System.arraycopy(o.order, 0, destinations, 0,
+                        destinations.length);
+                return true;
+            }
+        }
+
+        if (!computeOrder(start, destinations)) {
+            return false;
+        }
+
+        if (orderings.size() > 64) {
+            // Only a few destination sets are in use at the same time.
+            orderings.clear();
+            first = null;
+        }
+
+        // Drop the stale orderings with the same hash.
+        while (first != null && first.version != version) {
+            first = first.next;
+        }
+
+        orderings.put(hash, new Ordering(start, set, destinations.clone(),
+                version, first));
+        return true;
+    }
+
+    private boolean computeOrder(int start, int [] destinations) {
+
+        final int n = destinations.length;
+
+        // The chain, with the start at position 0.
+        int [] chain = new int[n+1];
+        chain[0] = start;
+        System.arraycopy(destinations, 0, chain, 1, n);
+
+        // The hops we did not measure cost as much as the worst one we did.
+        float unknown = 0;
+
+        for (int i=0;i<=n;i++) {
+            if (chain[i] < 0) {
+                return false;
+            }
+            for (int j=i+1;j<=n;j++) {
+                unknown = Math.max(unknown, symmetric(chain[i], chain[j]));
+            }
+        }
+
+        if (unknown == 0) {
+            return false;
+        }
+
+        // Nearest neighbour.
+        for (int i=1;i<n;i++) {
+            int best = i;
+
+            for (int j=i+1;j<=n;j++) {
+                if (hop(chain[i-1], chain[j], unknown)
+                        < hop(chain[i-1], chain[best], unknown)) {
+                    best = j;
+                }
+            }
+
+            int tmp = chain[i];
+            chain[i] = chain[best];
+            chain[best] = tmp;
+        }
+
+        // 2-opt: reverse chain[i..k] if that makes the chain cheaper. The
+        // chain is open at the end, so there is no edge after the last one.
+        boolean improved = true;
+        int passes = 0;
+
+        while (improved && passes++ < 100) {
+            improved = false;
+
+            for (int i=1;i<n;i++) {
+                for (int k=i+1;k<=n;k++) {
+                    float before = hop(chain[i-1], chain[i], unknown);
+                    float after = hop(chain[i-1], chain[k], unknown);
+
+                    if (k < n) {
+                        before += hop(chain[k], chain[k+1], unknown);
+                        after += hop(chain[i], chain[k+1], unknown);
+                    }
+
+                    if (after < before - 1e-6) {
+                        for (int a=i, b=k;a<b;a++, b--) {
+                            int tmp = chain[a];
+                            chain[a] = chain[b];
+                            chain[b] = tmp;
+                        }
+                        improved = true;
+                    }
+                }
+            }
+        }
+
+        System.arraycopy(chain, 1, destinations, 0, n);
+
+        if (logger.isDebugEnabled()) {
+            float total = 0;
+            for (int i=0;i<n;i++) {
+                total += hop(chain[i], chain[i+1], unknown);
+            }
+            logger.debug("Chain of " + n + " ordered by topology, cost "
+                    + total + " ms");
+        }
+
+        return true;
+    }
+}
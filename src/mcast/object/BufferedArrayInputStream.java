@@ -116,6 +116,21 @@ public final class BufferedArrayInputStream extends DataInputStream {
     public final int available() throws IOException {
         return buffered_bytes;
     }
+    
+    /**
+     * Returns the number of bytes in the buffer that have not been read yet.
+     */
+    public int buffered() {
+        return buffered_bytes;
+    }
+    
+    /**
+     * Drops the bytes in the buffer that have not been read yet.
+     */
+    public void clear() {
+        index = 0;
+        buffered_bytes = 0;
+    }
 
     public void readArray(boolean[] a, int off, int len) throws IOException {
 
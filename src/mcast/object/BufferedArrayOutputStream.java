@@ -35,9 +35,16 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
     /** The buffer in which output data is collected. */
     private byte[] buffer;
 
-    /** Size of the buffer in which output data is collected. */
+    /** Current position in the buffer. */
     private int index = 0;
 
+    /** 
+     * Start and end of the part of the buffer we may use. The buffer may be a
+     * slot in a larger arena, so it does not necessarily start at 0.
+     */
+    private int base = 0;
+    private int limit;
+
     /** Number of bytes written so far to the underlying layer. */
     private long bytes = 0;
 
@@ -55,7 +62,10 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
     public BufferedArrayOutputStream(LRMCOutputStream out, int bufsz) {
         this.out = out;
         this.buffer = out.getBuffer();
+        this.base = out.getBufferOffset();
+        this.index = base;
         this.BUF_SIZE = bufsz;
+        this.limit = base + Math.min(bufsz, out.getFragmentSize());
         conversion = Conversion.loadConversion(false);
     }
 
@@ -64,11 +74,12 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
     }
 
     public long bytesWritten() {
-        return bytes + index;
+        return bytes + (index - base);
     }
 
     public void resetBytesWritten() {
-        bytes = index;
+        // Data that is already in the buffer was written before the reset.
+        bytes = -(index - base);
     }
 
     /**
@@ -83,21 +94,41 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
 
         if (DEBUG) {
             System.err.println("flush(" + incr + ") : " + " "
-                    + (index + incr >= BUF_SIZE) + " " + (index) + " " + 
+                    + (index + incr >= limit) + " " + (index) + " " + 
                     forced + ")");
         }
 
-        if (forced || index + incr > BUF_SIZE) {
-            bytes += index;
+        if (forced || index + incr > limit) {
+            bytes += index - base;
 
             // The write will return a new buffer for us which is (at least)
             // the same size as the old one. 
-            buffer = out.write(0, index, forced);
+            buffer = out.write(base, index - base, forced);
             
             // Assume we lost the buffer here 
-            index = 0;            
+            base = out.getBufferOffset();
+            limit = base + Math.min(BUF_SIZE, out.getFragmentSize());
+            index = base;            
         }
     }
+    
+    /**
+     * Changes the number of bytes written per fragment. May only be called 
+     * when the buffer is empty.
+     */
+    public void setFragmentSize(int size) {
+        
+        if (index != base) { 
+            throw new IllegalStateException("Buffer not empty");
+        }
+        
+        out.setFragmentSize(Math.min(size, BUF_SIZE));
+        
+        buffer = out.getBuffer();
+        base = out.getBufferOffset();
+        limit = base + Math.min(BUF_SIZE, out.getFragmentSize());
+        index = base;
+    }
 
     public void write(int b) throws IOException {
         writeByte((byte) b);
@@ -168,7 +199,7 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
         do {
             flush(1, false);
 
-            int size = Math.min(BUF_SIZE - index, len);
+            int size = Math.min(limit - index, len);
 
             conversion.boolean2byte(ref, off, size, buffer, index);
 
@@ -186,9 +217,9 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
                     + "])");
         }
         
-        while (len > (BUF_SIZE-index)) { 
+        while (len > (limit-index)) { 
                                 
-            int space = BUF_SIZE-index;
+            int space = limit-index;
             
           //  System.err.println(" ______ copying " + space + " bytes");
             
@@ -221,7 +252,7 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
         do {
             flush(SIZEOF_CHAR, false);
 
-            int size = Math.min((BUF_SIZE - index) / SIZEOF_CHAR, len);
+            int size = Math.min((limit - index) / SIZEOF_CHAR, len);
 
             conversion.char2byte(ref, off, size, buffer, index);
 
@@ -242,7 +273,7 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
         do {
             flush(SIZEOF_SHORT, false);
 
-            int size = Math.min((BUF_SIZE - index) / SIZEOF_SHORT, len);
+            int size = Math.min((limit - index) / SIZEOF_SHORT, len);
 
             // System.err.println("Room to write " + size + " shorts");
 
@@ -267,7 +298,7 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
         do {
             flush(SIZEOF_INT, false);
 
-            int size = Math.min((BUF_SIZE - index) / SIZEOF_INT, len);
+            int size = Math.min((limit - index) / SIZEOF_INT, len);
 
             // System.err.println("Room to write " + size + " ints");
 
@@ -292,7 +323,7 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
         do {
             flush(SIZEOF_LONG, false);
 
-            int size = Math.min((BUF_SIZE - index) / SIZEOF_LONG, len);
+            int size = Math.min((limit - index) / SIZEOF_LONG, len);
 
             conversion.long2byte(ref, off, size, buffer, index);
 
@@ -312,7 +343,7 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
         do {
             flush(SIZEOF_FLOAT, false);
 
-            int size = Math.min((BUF_SIZE - index) / SIZEOF_FLOAT, len);
+            int size = Math.min((limit - index) / SIZEOF_FLOAT, len);
 
             conversion.float2byte(ref, off, size, buffer, index);
 
@@ -333,7 +364,7 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
         do {
             flush(SIZEOF_DOUBLE, false);
 
-            int size = Math.min((BUF_SIZE - index) / SIZEOF_DOUBLE, len);
+            int size = Math.min((limit - index) / SIZEOF_DOUBLE, len);
 
             conversion.double2byte(ref, off, size, buffer, index);
 
@@ -0,0 +1,180 @@
+package mcast.object;
+
+import mcast.util.IntObjectMap;
+
+/**
+ * Chooses the fragment size for the next multicast of an ObjectMulticaster.
+ *
+ * The multicasts are divided into buckets by (a power of two of) their size.
+ * For each bucket, we keep a running average of the throughput seen with each
+ * of the fragment sizes. The throughput of a multicast is its size divided by
+ * the time from the start of the send until its DONE comes back, so it covers
+ * every hop of the chain, not just our own serialization. Multicasts whose
+ * DONE does not come back are not counted. Since the size of an object is
+ * only known once it has been serialized, the bucket of the next multicast is
+ * predicted from the sizes of the previous ones.
+ *
+ * Every fragment size that makes sense for a bucket (that is, no larger than
+ * the multicast itself) is tried once, after which the best one is used. Once
+ * in a while another size is tried again, so we follow changes in the load or
+ * in the number of destinations.
+ */
+final class FragmentSizer {
+
+    private static final int BUCKETS = 32;
+
+    private static final int EXPLORE_INTERVAL = 32;
+
+    // The weight of a new measurement in the running averages.
+    private static final double ALPHA = 0.25;
+
+    // The number of multicasts that may wait for a DONE at the same time.
+    // Older ones are assumed lost.
+    private static final int MAX_SAMPLES = 64;
+
+    // A multicast that waits for its DONE.
+    private static final class Sample {
+        final int bucket;
+        final int chosen;
+        final long bytes;
+        final long start;
+
+        Sample(int bucket, int chosen, long bytes, long start) {
+            this.bucket = bucket;
+            this.chosen = chosen;
+            this.bytes = bytes;
+            this.start = start;
+        }
+    }
+
+    // The fragment sizes, largest first.
+    private final int [] sizes;
+
+    // The average throughput per bucket and fragment size, in bytes/ns.
+    private final double [][] rate = new double[BUCKETS][];
+
+    // Set when a fragment size was chosen for a bucket, even if its DONE has
+    // not come back yet, so we do not try it again meanwhile.
+    private final boolean [][] tried = new boolean[BUCKETS][];
+
+    // The multicasts that wait for a DONE, indexed by multicast ID.
+    private final IntObjectMap samples = new IntObjectMap();
+
+    private double predicted = 0;
+
+    private int multicasts = 0;
+
+    private int bucket;
+    private int chosen;
+
+    FragmentSizer(int maxSize, int sizeClasses) {
+
+        sizes = new int[Math.max(1, sizeClasses)];
+
+        for (int i=0;i<sizes.length;i++) {
+            sizes[i] = Math.max(1, maxSize >> i);
+        }
+
+        for (int i=0;i<BUCKETS;i++) {
+            rate[i] = new double[sizes.length];
+            tried[i] = new boolean[sizes.length];
+        }
+    }
+
+    private static int bucket(double size) {
+        int b = 0;
+
+        while (b < BUCKETS-1 && (1L << b) < size) {
+            b++;
+        }
+
+        return b;
+    }
+
+    /**
+     * Returns the fragment size to use for the next multicast.
+     */
+    synchronized int choose() {
+
+        bucket = bucket(predicted);
+
+        // Fragments larger than the multicast itself are no use, so the
+        // candidates are the smallest size that holds all of it and the ones
+        // below that.
+        int first = 0;
+
+        while (first < sizes.length-1 && sizes[first+1] >= (1L << bucket)) {
+            first++;
+        }
+
+        double [] r = rate[bucket];
+
+        int best = first;
+        int untried = -1;
+
+        for (int i=first;i<sizes.length;i++) {
+            if (!tried[bucket][i]) {
+                if (untried == -1) {
+                    untried = i;
+                }
+            } else if (r[i] > r[best]) {
+                best = i;
+            }
+        }
+
+        if (untried != -1) {
+            chosen = untried;
+            tried[bucket][chosen] = true;
+        } else if (++multicasts % EXPLORE_INTERVAL == 0) {
+            // Try one of the neighbours of the best size.
+            int n = best + ((multicasts / EXPLORE_INTERVAL) % 2 == 0 ? 1 : -1);
+            chosen = (n >= first && n < sizes.length) ? n : best;
+        } else {
+            chosen = best;
+        }
+
+        return sizes[chosen];
+    }
+
+    /**
+     * Records that multicast 'id', of the given size, was sent with the last
+     * chosen fragment size. The send started at 'start' (from
+     * System.nanoTime).
+     */
+    synchronized void sent(int id, long bytes, long start) {
+
+        samples.remove(id - MAX_SAMPLES);
+        samples.put(id, new Sample(bucket, chosen, bytes, start));
+
+        if (predicted == 0) {
+            predicted = bytes;
+        } else {
+            predicted += ALPHA * (bytes - predicted);
+        }
+    }
+
+    /**
+     * Records that the DONE for multicast 'id' came back.
+     */
+    synchronized void done(int id) {
+
+        Sample s = (Sample) samples.remove(id);
+
+        if (s == null) {
+            return;
+        }
+
+        long time = System.nanoTime() - s.start;
+
+        if (time > 0) {
+            double current = (double) s.bytes / time;
+            double [] r = rate[s.bucket];
+
+            if (r[s.chosen] == 0) {
+                r[s.chosen] = current;
+            } else {
+                r[s.chosen] += ALPHA * (current - r[s.chosen]);
+            }
+        }
+    }
+}
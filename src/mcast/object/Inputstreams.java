@@ -26,7 +26,18 @@ public class Inputstreams {
 
     private boolean finish = false;
     
-    private void add(LRMCInputStream is, short sender) {
+    // Set if the streams must put the fragments they get back in order.
+    private final boolean reorder;
+    
+    public Inputstreams() { 
+        this(false);
+    }
+    
+    public Inputstreams(boolean reorder) { 
+        this.reorder = reorder;
+    }
+    
+    private void add(LRMCInputStream is, int sender) {
         if (sender >= inputStreams.length) {
             resize(sender);
         }
@@ -47,37 +58,73 @@ public class Inputstreams {
         notifyAll();
     }
 
+    /**
+     * Removes the stream of a sender that left. Its ID may be reused by a
+     * sender that joins later, which must get a fresh stream. Since the IDs
+     * are reused, the arrays only need to be as large as the number of live
+     * senders, so they are shrunk when the highest ones are removed.
+     */
+    public synchronized void remove(int sender) {
+        LRMCInputStream is = find(sender);
+
+        if (is == null) {
+            return;
+        }
+
+        is.terminate();
+        inputStreams[sender] = null;
+
+        if (hasData[sender]) {
+            hasData[sender] = false;
+            streamsWithData--;
+        }
+
+        busy[sender] = false;
+
+        while (last >= 0 && inputStreams[last] == null) {
+            last--;
+        }
+
+        if (last < inputStreams.length/4 && inputStreams.length > DEFAULT_SIZE) {
+            resize(last);
+        }
+    }
+
     private void resize(int minimumSize) {
-        int newSize = hasData.length;
+        int newSize = DEFAULT_SIZE;
 
         while (newSize <= minimumSize) {
             newSize *= 2;
         }
 
+        int copy = Math.min(newSize, inputStreams.length);
+
         LRMCInputStream[] tmp1 = new LRMCInputStream[newSize];
-        System.arraycopy(inputStreams, 0, tmp1, 0, inputStreams.length);
+        System.arraycopy(inputStreams, 0, tmp1, 0, copy);
         inputStreams = tmp1;
 
         boolean[] tmp2 = new boolean[newSize];
-        System.arraycopy(hasData, 0, tmp2, 0, hasData.length);
+        System.arraycopy(hasData, 0, tmp2, 0, copy);
         hasData = tmp2;
 
         boolean[] tmp3 = new boolean[newSize];
-        System.arraycopy(busy, 0, tmp3, 0, busy.length);
+        System.arraycopy(busy, 0, tmp3, 0, copy);
+        
+        index = index % newSize;
         busy = tmp3;
     }
 
-    public synchronized LRMCInputStream get(short sender, MessageCache cache,
-            ObjectMulticaster om) {
+    public synchronized LRMCInputStream get(int sender, MessageCache cache,
+            ObjectReceiver om) {
         LRMCInputStream tmp = find(sender);
         if (tmp == null) {
-            tmp = new LRMCInputStream(sender, cache, om);
+            tmp = new LRMCInputStream(sender, cache, om, reorder);
             add(tmp, sender);
         }
         return tmp;
     }
 
-    private LRMCInputStream find(short sender) {
+    private LRMCInputStream find(int sender) {
         if(sender < 0 || sender > last) {
             return null;
         }
@@ -86,6 +133,10 @@ public class Inputstreams {
     }
 
     public synchronized void returnStream(LRMCInputStream is) {
+        if (find(is.getSource()) != is) {
+            // The sender left while we were reading.
+            return;
+        }
         busy[is.getSource()] = false;
         if (is.haveData()) {
             if (logger.isDebugEnabled()) {
@@ -111,6 +162,9 @@ public class Inputstreams {
 
     public synchronized void hasData(LRMCInputStream is) {
         int src = is.getSource();
+        if (find(src) != is) {
+            return;
+        }
         if (! hasData[src] && ! busy[src]) {
             // Fix: Test before setting and incrementing counter (Ceriel)
             // Fix: Don't set hasData while it is busy. This may be incorrect
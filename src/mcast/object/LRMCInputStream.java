@@ -1,5 +1,8 @@
 package mcast.object;
 
+import ibis.io.SerializationFactory;
+import ibis.io.SerializationInput;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -16,7 +19,11 @@ public class LRMCInputStream extends InputStream {
     private static final Logger logger
             = Logger.getLogger(LRMCInputStream.class);
     
-    private final short source;       
+    // How long we wait for a missing fragment when reordering, before we 
+    // assume it is lost.
+    private static final long REORDER_TIMEOUT = 1000;
+    
+    private final int source;       
 
     private final ObjectReceiver receiver;
     
@@ -28,6 +35,18 @@ public class LRMCInputStream extends InputStream {
     
     private int currentID = 0;    
     private int currentNum = 0;    
+    
+    // When the sender stripes its multicasts over several chains, or when 
+    // fragments are forwarded again after a node died, the fragments may 
+    // arrive out of order, and we put them back in order of series ID and 
+    // num. The sender marks such fragments, so this is switched on by the 
+    // first marked fragment we get.
+    private boolean reorder;
+    
+    // The ID of the last series we finished, or 0 if unknown. The IDs of a 
+    // sender increase, but they need not be contiguous for us, since the 
+    // sender may multicast some series to other destinations only.
+    private int lastID = 0;
 
     private boolean finish = false;
           
@@ -36,17 +55,35 @@ public class LRMCInputStream extends InputStream {
 //    private int highBound = 1024*1024;
        
     private MessageCache cache; 
+    
+    // Objects are deserialized through a buffer that may read ahead up to the
+    // end of the current series, so a batch of several objects ends up in the 
+    // buffer after the first one is read. The buffer therefore belongs to 
+    // this stream, and not to the reader, which reads from many streams.
+    private final BufferedArrayInputStream buffer;
+    private SerializationInput input;
+    
+    // Set if the bytes we handed to the buffer last came from the last 
+    // fragment of a series, so any objects left in the buffer are complete.
+    private boolean lastTaken = false;
            
-    public LRMCInputStream(short source, MessageCache cache) { 
+    public LRMCInputStream(int source, MessageCache cache) { 
         this(source, cache, null);
     }
     
-    public LRMCInputStream(short source, MessageCache cache, 
+    public LRMCInputStream(int source, MessageCache cache, 
             ObjectReceiver receiver) {  
+        this(source, cache, receiver, false);
+    }
+    
+    public LRMCInputStream(int source, MessageCache cache, 
+            ObjectReceiver receiver, boolean reorder) {  
         
         this.source = source;
         this.cache = cache;
         this.receiver = receiver;        
+        this.reorder = reorder;
+        this.buffer = new BufferedArrayInputStream(this);
     }
 
     public synchronized void terminate() {
@@ -54,11 +91,14 @@ public class LRMCInputStream extends InputStream {
         notifyAll();
     }
 
-    public short getSource() { 
+    public int getSource() { 
         return source;
     }
     
     public boolean haveData() {        
+        if (buffer.buffered() > 0) { 
+            return true;
+        }
         if (current != null && index < current.len) {
             return true;
         }
@@ -67,10 +107,134 @@ public class LRMCInputStream extends InputStream {
         }
     }
     
+    /**
+     * Returns true if the data left in this stream contains at least one 
+     * complete object, that is, if a last packet has been received for it. 
+     * Since objects never straddle series, this is the case when there is 
+     * data left and a last packet is queued, or when the buffer still holds
+     * data of a series we have read up to the last packet. 
+     */
+    public synchronized boolean haveCompleteObject() {
+        
+        if (lastTaken && buffer.buffered() > 0) { 
+            return true;
+        }
+        
+        if (current != null && index < current.len && current.last) { 
+            return true;
+        }
+        
+        if (reorder) { 
+            return haveCompleteSeries();
+        }
+        
+        for (int i=0;i<queue.size();i++) { 
+            if (queue.get(i).last) { 
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    // Checks if the fragments following the current one are all there, up to 
+    // the last one of the series. 
+    private boolean haveCompleteSeries() { 
+        
+        int id; 
+        int num;
+        
+        // Skip the late copies, they are dropped when we get to them.
+        int first = 0;
+        
+        while (first < queue.size() && queue.get(first).id <= lastID) { 
+            first++;
+        }
+        
+        if (current != null && index < current.len) { 
+            id = current.id;
+            num = current.num + 1;
+        } else if (currentID != 0) { 
+            // We are half way a series.
+            id = currentID;
+            num = currentNum;
+        } else if (first < queue.size()) { 
+            id = queue.get(first).id;
+            num = 0;
+        } else { 
+            return false;
+        }
+        
+        for (int i=first;i<queue.size();i++) { 
+            Message m = queue.get(i);
+            
+            if (m.id != id || m.num != num) { 
+                return false;
+            }
+            
+            if (m.last) { 
+                return true;
+            }
+            
+            num++;
+        }
+        
+        return false;
+    }
+    
+    // Returns true if m comes before other in a stream.
+    private static boolean before(Message m, Message other) { 
+        return m.id < other.id || (m.id == other.id && m.num < other.num);
+    }
+    
+    // Returns true if m is the fragment we need next. Between series, that is 
+    // the first fragment of any later series. 
+    private boolean expected(Message m) { 
+        if (currentID == 0) { 
+            return m.num == 0 && m.id > lastID;
+        }
+        return m.id == currentID && m.num == currentNum;
+    }
+    
+    // Drops m if it is a late copy of a fragment of a series we finished, for
+    // instance one that was forwarded again after a node died. 
+    private boolean late(Message m) { 
+        
+        if (m.id > lastID) { 
+            return false;
+        }
+        
+        if (logger.isDebugEnabled()) {
+            logger.debug("Dropping late message " + m.id + "/" + m.num);
+        }
+        
+        cache.put(m);
+        return true;
+    }
+    
     public boolean addMessage(Message m) { 
         
         synchronized(this) {
-            queue.add(m);
+            if (m.unordered) { 
+                reorder = true;
+            }
+            
+            if (reorder && late(m)) { 
+                return true;
+            }
+            
+            if (reorder) { 
+                // Usually, the message belongs at the end.
+                int pos = queue.size();
+                
+                while (pos > 0 && before(m, queue.get(pos-1))) { 
+                    pos--;
+                }
+                
+                queue.add(pos, m);
+            } else { 
+                queue.add(m);
+            }
             notify();
         }
         
@@ -92,13 +256,43 @@ public class LRMCInputStream extends InputStream {
 
     private void getMessage() { 
         synchronized(this) {
-            while (! finish && queue.size() == 0) {
+            while (! finish) {
+                // Drop copies that were queued before we finished their 
+                // series.
+                while (reorder && queue.size() > 0 && late(queue.get(0))) { 
+                    queue.remove(0);
+                }
+                
+                if (queue.size() > 0) { 
+                    break;
+                }
+                
                 try {
                     wait();
                 } catch(Exception e) {
                     // ignored
                 }
             }
+            if (reorder && !finish && !expected(queue.get(0))) {
+                // Give the missing fragment some time to arrive. 
+                long deadline = System.currentTimeMillis() + REORDER_TIMEOUT;
+                
+                while (!finish && !expected(queue.get(0))) { 
+                    long left = deadline - System.currentTimeMillis();
+                    
+                    if (left <= 0) { 
+                        logger.info("Fragment " + currentID + "/" + currentNum 
+                                + " from " + source + " seems to be lost");
+                        break;
+                    }
+                    
+                    try {
+                        wait(left);
+                    } catch(Exception e) {
+                        // ignored
+                    }
+                }
+            }
             if (finish) {
                 current = null;
                 return;
@@ -143,8 +337,10 @@ public class LRMCInputStream extends InputStream {
                 logger.debug("Starting new series " + current.id);            
             }
                         
-            currentID  = current.id;
-            currentNum = 0;
+            synchronized (this) {
+                currentID  = current.id;
+                currentNum = 0;
+            }
     /*
             if (memoryUsage > highBound) { 
                 System.err.println("++++ Current memory usage " + 
@@ -182,7 +378,9 @@ public class LRMCInputStream extends InputStream {
                     + " current series " + currentID + "/" + currentNum + 
                     " next packet " + current.id + "/" + current.num;
             
-            currentID  = 0;                        
+            synchronized (this) {
+                currentID  = 0;
+            }
             throw new IOException(tmp);            
         } 
     }
@@ -195,11 +393,15 @@ public class LRMCInputStream extends InputStream {
                     + " last = " + current.last);
         }
         
-        if (current.last) { 
-            currentID  = 0;
-            currentNum = 0;
-        } else { 
-            currentNum++;
+        // The upcall looks at the series state when it queues a message.
+        synchronized (this) {
+            if (current.last) { 
+                lastID = current.id;
+                currentID  = 0;
+                currentNum = 0;
+            } else { 
+                currentNum++;
+            }
         }
         
         // Note use real length here!
@@ -224,6 +426,8 @@ public class LRMCInputStream extends InputStream {
         }
 
         int leftover = current.len-index;
+        
+        lastTaken = current.last;
                 
         if (leftover <= len) { 
             if (logger.isDebugEnabled()) {
@@ -231,16 +435,51 @@ public class LRMCInputStream extends InputStream {
                         + " " + off + " " + leftover);
             }
             
-            System.arraycopy(current.buffer, index, b, off, leftover);            
+            System.arraycopy(current.buffer, current.off + index, b, off, 
+                    leftover);            
             freeMessage();
             return leftover;
         } else {          
-            System.arraycopy(current.buffer, index, b, off, len);
+            System.arraycopy(current.buffer, current.off + index, b, off, len);
             index += len;
             return len;
         } 
     }
     
+    /**
+     * Reads the next object from this stream. If the object cannot be read, 
+     * whatever is left in the buffer is dropped, since we no longer know 
+     * where the next object starts.
+     */
+    public Object readObject() throws IOException, ClassNotFoundException { 
+        
+        if (input == null) { 
+            input = SerializationFactory.createSerializationInput("ibis", 
+                    buffer);
+        }
+        
+        buffer.resetBytesRead();
+        
+        boolean ok = false;
+        
+        try { 
+            Object result = input.readObject();
+            ok = true;
+            return result;
+        } finally { 
+            if (!ok) { 
+                buffer.clear();
+            }
+        }
+    }
+    
+    /**
+     * Returns the number of bytes used by the last object read.
+     */
+    public long bytesRead() { 
+        return buffer.bytesRead();
+    }
+    
     public int read() throws IOException {
         // Ouch ... fortunately it's never used! 
         byte [] tmp = new byte[1];        
@@ -25,10 +25,14 @@ public class LRMCOutputStream extends OutputStream {
     
     private Message message;
     
+    // The number of bytes to put in each fragment.
+    private int fragmentSize;
+    
     LRMCOutputStream(LableRoutingMulticast mcast, MessageCache cache) { 
         this.mcast = mcast;
         this.cache = cache;
         message = cache.get();        
+        fragmentSize = message.capacity;
     }
 
     public void reset() { 
@@ -47,6 +51,30 @@ public class LRMCOutputStream extends OutputStream {
         return message.buffer;
     }
     
+    // Returns the offset at which the current buffer starts.
+    public int getBufferOffset() { 
+        return message.base;
+    }
+    
+    // Returns the number of bytes that may be written to the current buffer.
+    public int getFragmentSize() { 
+        return Math.min(fragmentSize, message.capacity);
+    }
+    
+    /**
+     * Sets the size of the fragments. May only be called when no data has been
+     * written to the current buffer, since it may be replaced.
+     */
+    public void setFragmentSize(int size) { 
+        
+        fragmentSize = size;
+        
+        if (message.capacity < size) { 
+            cache.put(message);
+            message = cache.get(size);
+        }
+    }
+    
     public byte [] write(int off, int len, boolean lastPacket) {
         
         if (closed) { 
@@ -61,7 +89,7 @@ public class LRMCOutputStream extends OutputStream {
             currentNUM++;
         }
         
-        message.off = 0;
+        message.off = message.base;
         message.len = len;        
 
         if (lastPacket) {
@@ -76,7 +104,7 @@ public class LRMCOutputStream extends OutputStream {
             return message.buffer;
         } 
         
-        message = cache.get();
+        message = cache.get(fragmentSize);
         return message.buffer;
     }
         
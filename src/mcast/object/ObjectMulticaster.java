@@ -1,7 +1,6 @@
 package mcast.object;
 
 import ibis.io.SerializationFactory;
-import ibis.io.SerializationInput;
 import ibis.io.SerializationOutput;
 
 import ibis.ipl.Ibis;
@@ -11,12 +10,15 @@ import ibis.util.TypedProperties;
 
 import java.io.IOException;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
 
 import mcast.lrm.LableRoutingMulticast;
 import mcast.lrm.Message;
 import mcast.lrm.MessageCache;
 import mcast.lrm.MessageReceiver;
+import mcast.util.IntObjectMap;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.Level;
@@ -24,10 +26,11 @@ import org.apache.log4j.PatternLayout;
 import org.apache.log4j.WriterAppender;
 
 
-// TODO find a way to share destination arrays in messages --Rob
-
 public class ObjectMulticaster implements MessageReceiver, ObjectReceiver {
 
+    private static final Logger logger
+            = Logger.getLogger(ObjectMulticaster.class);
+
     static {
         Logger mcastLogger = Logger.getLogger("mcast");
         if (!mcastLogger.getAllAppenders().hasMoreElements()) {
@@ -43,21 +46,36 @@ public class ObjectMulticaster implements MessageReceiver, ObjectReceiver {
 
     private final int MESSAGE_CACHE_SIZE;
 
+    // When BATCH_BYTES > 0, small objects are packed into a single series of
+    // packets, which is flushed when it holds BATCH_BYTES bytes, or when it 
+    // has been open for BATCH_DELAY ms.
+    private final int BATCH_BYTES;
+    private final long BATCH_DELAY;
+
+    // The maximum number of sendAsync calls that have not been acknowledged 
+    // yet (0 means no limit), and the time after which we stop waiting for 
+    // an acknowledgement.
+    private final int MAX_IN_FLIGHT;
+    private final long SEND_TIMEOUT;
+
+    // Chooses the fragment size per multicast, or null if the size is fixed.
+    private final FragmentSizer sizer;
+
     private LableRoutingMulticast lrmc; 
     
     private LRMCOutputStream os; 
     
     private BufferedArrayOutputStream bout;
-    private BufferedArrayInputStream bin;
     
     private SerializationOutput sout;
-    private SerializationInput sin;    
           
+    private final String name;
     private final boolean signal;
     private final LinkedList<Object> objects = new LinkedList<Object>();
     
     private long totalData = 0;
     private long lastBytesWritten = 0;
+    private long lastBytesRead = 0;
     
     private MessageCache cache; 
 
@@ -65,13 +83,123 @@ public class ObjectMulticaster implements MessageReceiver, ObjectReceiver {
     private boolean receiverDone = false;
     private Thread receiver = null;
     
-    private Inputstreams inputStreams = new Inputstreams();
+    private Inputstreams inputStreams;
     
     private boolean destinationSet = false;
     private IbisIdentifier [] destination = null; 
 
     private final SendDoneUpcaller sendDoneUpcaller;
 
+    // The result of a sendAsync. Objects batched into the same multicast 
+    // share a SendHandle.
+    private static class SendHandle extends CompletableFuture<Integer> { 
+        
+        final int id;
+        final long time;
+        
+        int sends = 0;
+        
+        SendHandle(int id) { 
+            this.id = id;
+            this.time = System.currentTimeMillis();
+        }
+    }
+    
+    // The SendHandles waiting for a DONE, indexed by multicast ID. Also used 
+    // as the lock for the in-flight window.
+    private final IntObjectMap pending = new IntObjectMap();
+    private int inFlight = 0;
+    
+    // The same SendHandles, oldest first. Handles that got their DONE are 
+    // only removed once they reach the front.
+    private final LinkedList<SendHandle> sent = new LinkedList<SendHandle>();
+    
+    // Fails the handles that get no DONE in time, started by the first 
+    // sendAsync.
+    private SendExpirer expirer = null;
+    
+    // The handle registered by the last asynchronous send.
+    private SendHandle lastHandle;
+
+    private boolean batchOpen = false;
+    private long batchBytes = 0;
+    private long batchStart = 0;
+    
+    private class BatchFlusher extends Thread { 
+        
+        BatchFlusher(String name) { 
+            super("ObjectMulticaster:" + name + ":flush");
+            setDaemon(true);
+        }
+        
+        public void run() { 
+            synchronized (ObjectMulticaster.this) { 
+                while (!finish) { 
+                    long left = batchStart + BATCH_DELAY 
+                        - System.currentTimeMillis();
+                    
+                    if (batchOpen && left <= 0) { 
+                        try { 
+                            flushBatch();
+                        } catch (IOException e) { 
+                            logger.info("Failed to flush batch! ", e);
+                        }
+                        continue;
+                    }
+                    
+                    try { 
+                        ObjectMulticaster.this.wait(batchOpen ? left : 0);
+                    } catch (InterruptedException e) { 
+                        // ignored
+                    }
+                }
+            }
+        }
+    }
+
+    // The multicast is unreliable, so a DONE may never come. This thread 
+    // fails the handles that have waited SEND_TIMEOUT ms, whether or not the
+    // in-flight window is full.
+    private class SendExpirer extends Thread { 
+        
+        SendExpirer(String name) { 
+            super("ObjectMulticaster:" + name + ":expire");
+            setDaemon(true);
+        }
+        
+        public void run() { 
+            while (true) { 
+                ArrayList<SendHandle> expired;
+                
+                synchronized (pending) { 
+                    if (finish) { 
+                        return;
+                    }
+                    
+                    trimSent();
+                    
+                    long left = sent.isEmpty() ? 0 
+                            : sent.getFirst().time + SEND_TIMEOUT 
+                                - System.currentTimeMillis();
+                    
+                    if (sent.isEmpty() || left > 0) { 
+                        try { 
+                            pending.wait(left);
+                        } catch (InterruptedException e) { 
+                            // ignored
+                        }
+                        continue;
+                    }
+                    
+                    expired = expire(System.currentTimeMillis() 
+                            - SEND_TIMEOUT);
+                }
+                
+                fail(expired);
+            }
+        }
+    }
+
     public ObjectMulticaster(Ibis ibis, String name) 
         throws IOException {       
         this(ibis, false, false, name, null);
@@ -87,21 +215,45 @@ public class ObjectMulticaster implements MessageReceiver, ObjectReceiver {
         TypedProperties tp = new TypedProperties(ibis.properties());
         this.sendDoneUpcaller = s;
         this.signal = signal;
+        this.name = name;
         this.MESSAGE_SIZE = tp.getIntProperty("lrmc.messageSize", 8 * 1024);
         this.MESSAGE_CACHE_SIZE = tp.getIntProperty("lrmc.messageCacheSize",
                 1500);
+        this.BATCH_BYTES = tp.getIntProperty("lrmc.batchBytes", 0);
+        this.BATCH_DELAY = Math.max(1, tp.getIntProperty("lrmc.batchDelay", 5));
+        this.MAX_IN_FLIGHT = tp.getIntProperty("lrmc.maxInFlight", 0);
+        this.SEND_TIMEOUT = tp.getIntProperty("lrmc.sendTimeout", 60000);
+        
+        // The streams put the fragments back in order if the sender marked 
+        // them as possibly out of order (see Message.UNORDERED_PACKET).
+        inputStreams = new Inputstreams();
         
-        cache = new MessageCache(MESSAGE_CACHE_SIZE, MESSAGE_SIZE);
+        // In adaptive mode, lrmc.messageSize is the largest fragment size, and 
+        // we keep buffers for lrmc.sizeClasses sizes, each half the previous. 
+        int sizeClasses = 1;
+        
+        if (tp.getBooleanProperty("lrmc.adaptiveFragments", false)) { 
+            sizeClasses = Math.max(1, tp.getIntProperty("lrmc.sizeClasses", 3));
+            sizer = new FragmentSizer(MESSAGE_SIZE, sizeClasses);
+        } else { 
+            sizer = null;
+        }
+        
+        cache = new MessageCache(MESSAGE_CACHE_SIZE, MESSAGE_SIZE, 
+                tp.getBooleanProperty("lrmc.bufferArena", false), sizeClasses);
                 
         lrmc = new LableRoutingMulticast(ibis, this, cache, changeOrder, name);
         
         os = new LRMCOutputStream(lrmc, cache);
 
         bout = new BufferedArrayOutputStream(os, MESSAGE_SIZE);
-        bin = new BufferedArrayInputStream(null);
         
+        // Each input stream has its own deserializer, see LRMCInputStream.
         sout = SerializationFactory.createSerializationOutput("ibis", bout);
-        sin = SerializationFactory.createSerializationInput("ibis", bin);
+        
+        if (BATCH_BYTES > 0) { 
+            new BatchFlusher(name).start();
+        }
     }
 
     public static PortType getPortType() {
@@ -110,7 +262,14 @@ public class ObjectMulticaster implements MessageReceiver, ObjectReceiver {
     
     public synchronized void setDestination(IbisIdentifier [] dest) {         
         destination = dest;
-        cache.setDestinationSize(dest.length);
+    }
+    
+    /**
+     * Starts connecting to the given ibises in the background, so that the 
+     * first multicast to them does not pay for the connection setup.  
+     */
+    public void preconnect(IbisIdentifier [] ids) { 
+        lrmc.preconnect(ids);
     }
     
     public void addIbis(IbisIdentifier id) { 
@@ -118,14 +277,175 @@ public class ObjectMulticaster implements MessageReceiver, ObjectReceiver {
     }
     
     public void removeIbis(IbisIdentifier id) { 
-        lrmc.removeIbis(id);
+        int sender = lrmc.removeIbis(id);
+        
+        if (sender != -1) { 
+            inputStreams.remove(sender);
+        }
     }    
 
     public void gotDone(int id) {
+        
+        SendHandle h;
+        
+        synchronized (pending) { 
+            h = (SendHandle) pending.remove(id);
+            
+            if (h != null) { 
+                inFlight -= h.sends;
+                trimSent();
+                pending.notifyAll();
+            }
+        }
+        
+        // Complete the future outside the lock, since it may run callbacks.
+        if (h != null) { 
+            h.complete(id);
+        }
+        
+        if (sizer != null) { 
+            sizer.done(id);
+        }
+        
         if (sendDoneUpcaller != null) {
             sendDoneUpcaller.sendDone(id);
         }
     }
+    
+    // Waits until there is room in the in-flight window, and claims a place 
+    // in it. 
+    private void waitForWindow() throws IOException { 
+        
+        synchronized (pending) { 
+            while (MAX_IN_FLIGHT > 0 && inFlight >= MAX_IN_FLIGHT) { 
+                
+                if (finish) { 
+                    throw new DoneException("Someone wants us to stop");
+                }
+                
+                // The SendExpirer frees our place if no DONE comes in.
+                try { 
+                    pending.wait();
+                } catch (InterruptedException e) { 
+                    // ignored
+                }
+            }
+            
+            inFlight++;
+        }
+    }
+    
+    // Drops the handles that got their DONE from the front of the sent list.
+    // Must hold the pending lock.
+    private void trimSent() { 
+        
+        while (!sent.isEmpty()) { 
+            SendHandle h = sent.getFirst();
+            
+            if (pending.get(h.id) == h) { 
+                return;
+            }
+            
+            sent.removeFirst();
+        }
+    }
+    
+    // Gives up on the handles that were sent before the given time, and 
+    // returns them. Must hold the pending lock; the caller fails the handles 
+    // after releasing it.
+    private ArrayList<SendHandle> expire(long time) { 
+        
+        ArrayList<SendHandle> result = new ArrayList<SendHandle>();
+        
+        while (!sent.isEmpty() && sent.getFirst().time < time) { 
+            SendHandle h = sent.removeFirst();
+            
+            if (pending.get(h.id) == h) { 
+                pending.remove(h.id);
+                inFlight -= h.sends;
+                result.add(h);
+            }
+        }
+        
+        if (result.size() > 0) { 
+            pending.notifyAll();
+        }
+        
+        return result;
+    }
+    
+    // Fails the expired handles. Done outside the lock, since it may run 
+    // callbacks.
+    private void fail(ArrayList<SendHandle> expired) { 
+        
+        for (SendHandle h : expired) { 
+            h.completeExceptionally(new IOException(
+                    "No acknowledgement for multicast " + h.id));
+        }
+    }
+    
+    // Registers an asynchronous send of the object that will be part of 
+    // multicast 'id'.
+    private void register(int id) { 
+        
+        synchronized (pending) { 
+            SendHandle h = (SendHandle) pending.get(id);
+            
+            if (h == null) { 
+                h = new SendHandle(id);
+                pending.put(id, h);
+                sent.addLast(h);
+                
+                if (expirer == null) { 
+                    expirer = new SendExpirer(name);
+                    expirer.start();
+                } else if (sent.size() == 1) { 
+                    // The expirer has nothing to wait for yet.
+                    pending.notifyAll();
+                }
+            }
+            
+            h.sends++;
+            lastHandle = h;
+        }
+    }
+    
+    /**
+     * Multicasts an object to the current destinations, and returns a future 
+     * that is completed with the ID of the multicast when the last destination 
+     * has acknowledged it. If lrmc.maxInFlight is set, this waits until fewer
+     * than that many asynchronous sends are unacknowledged. Since messages may
+     * get lost, the future fails if no acknowledgement arrives within 
+     * lrmc.sendTimeout ms, or if we are done.
+     */
+    public CompletableFuture<Integer> sendAsync(Object o) throws IOException {
+        
+        waitForWindow();
+        
+        synchronized (this) { 
+            lastHandle = null;
+            
+            try { 
+                send(o, true);
+                return lastHandle;
+            } finally { 
+                if (lastHandle == null) { 
+                    // We did not get as far as registering, so give back our 
+                    // place in the window.
+                    synchronized (pending) { 
+                        inFlight--;
+                        pending.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+    
+    public CompletableFuture<Integer> sendAsync(IbisIdentifier[] id, Object o) 
+            throws IOException {
+        setDestination(id);
+        return sendAsync(o);
+    }
 
     public boolean gotMessage(Message m) {
 
@@ -152,9 +472,15 @@ public class ObjectMulticaster implements MessageReceiver, ObjectReceiver {
     }
     
     public synchronized int send(Object o) throws IOException {
+        return send(o, false);
+    }
+    
+    private synchronized int send(Object o, boolean async) throws IOException {
 
         // check if a new destination array is available....
         if (destination != null) {
+            // The open batch was meant for the old destinations.
+            flushBatch();
             lrmc.setDestination(destination);
             destination = null;
             destinationSet = true;            
@@ -166,23 +492,81 @@ public class ObjectMulticaster implements MessageReceiver, ObjectReceiver {
         // reset the count.
         bout.resetBytesWritten();               
         
-        os.reset();
+        // Batches are sized by lrmc.batchBytes, so we only adapt without them.
+        boolean adapt = sizer != null && BATCH_BYTES == 0;
+        long start = 0;
+        
+        if (!batchOpen) { 
+            os.reset();
+        }
+        
+        if (adapt) { 
+            bout.setFragmentSize(sizer.choose());
+            start = System.nanoTime();
+        }
 
         int retval = os.currentID;
         
-        // write the object and reset the stream
+        if (async) { 
+            // Register before sending, since the DONE may come back quickly.
+            register(retval);
+        }
+        
+        // write the object and reset the stream. Note that we also reset when
+        // batching, since the receiver may read objects from other senders
+        // in between.  
         sout.reset(true);              
         sout.writeObject(o);
         sout.flush();
 
-        bout.forcedFlush();
-
         lastBytesWritten = bout.bytesWritten();
         
         totalData += lastBytesWritten;
+
+        if (BATCH_BYTES == 0) { 
+            bout.forcedFlush();
+            
+            if (adapt) { 
+                // The sizer learns how long it took once the DONE comes in.
+                sizer.sent(retval, lastBytesWritten, start);
+            }
+            return retval;
+        } 
+
+        if (!batchOpen) { 
+            batchOpen = true;
+            batchStart = System.currentTimeMillis();
+            
+            // wake up the flusher
+            notifyAll();
+        }
+        
+        batchBytes += lastBytesWritten;
+        
+        if (batchBytes >= BATCH_BYTES) { 
+            flushBatch();
+        }
         
         return retval;
     }
+    
+    private void flushBatch() throws IOException { 
+        if (batchOpen) { 
+            bout.forcedFlush();
+            batchOpen = false;
+            batchBytes = 0;
+        }
+    }
+    
+    /**
+     * Sends the objects that are waiting in the current batch right away. 
+     * Only useful when batching is enabled (lrmc.batchBytes > 0). In that 
+     * case, all objects in a batch share the ID returned by send, and the 
+     * SendDoneUpcaller is called once for the whole batch. 
+     */
+    public synchronized void flush() throws IOException { 
+        flushBatch();
+    }
 
     public long lastSize() {
         return lastBytesWritten;
@@ -201,16 +585,13 @@ public class ObjectMulticaster implements MessageReceiver, ObjectReceiver {
             throw new DoneException("Someone wants us to stop");
         }
 
-        // Plug it into the deserializer
-        bin.setInputStream(stream);
-        bin.resetBytesRead();
-        
         // Read an object
         try { 
-            result = sin.readObject();
+            result = stream.readObject();
         } finally {
+            lastBytesRead = stream.bytesRead();
+            totalData += lastBytesRead;
             inputStreams.returnStream(stream);
-            totalData += bin.bytesRead();
         }
 
         return result;
@@ -256,7 +637,7 @@ public class ObjectMulticaster implements MessageReceiver, ObjectReceiver {
     } 
     
     public long bytesRead() { 
-        return bin.bytesRead();
+        return lastBytesRead;
     }
     
     public long bytesWritten() { 
@@ -269,9 +650,23 @@ public class ObjectMulticaster implements MessageReceiver, ObjectReceiver {
     
     public void done() {
         synchronized(this) {
+            try { 
+                flushBatch();
+            } catch (IOException e) { 
+                // ignore, we tried ...
+            }
             finish = true;
             inputStreams.terminate();
             notifyAll();
+            
+            ArrayList<SendHandle> expired;
+            
+            synchronized (pending) { 
+                expired = expire(Long.MAX_VALUE);
+                pending.notifyAll();
+            }
+            
+            fail(expired);
             // we can tell the receiver thread, but we don't know that
             // it will actually finish, so we cannot join it.
             if (receiver != null) {
@@ -285,40 +680,37 @@ public class ObjectMulticaster implements MessageReceiver, ObjectReceiver {
                 }
             }
         }
-        try {
-            os.close();
+        os.close();
             
-            //sout.close(); // don't close this one. It keeps on talking...
-            sin.close();
+        //sout.close(); // don't close this one. It keeps on talking...
             
-            lrmc.done();
-        } catch (IOException e) {
-            // ignore, we tried ...
-        }
+        lrmc.done();
     }
     
     public synchronized void haveObject(LRMCInputStream stream) {
 
+        // When the sender batches, a single series may contain many objects,
+        // so we read all the complete ones.
+        while (!finish && stream.haveCompleteObject()) { 
+            readObject(stream);
+        }
+    }
+    
+    private void readObject(LRMCInputStream stream) {
+
         Object result = null; 
         boolean succes = true;
 
-        if (finish) {
-            return;
-        }
-
-        // Plug it into the deserializer
-        bin.setInputStream(stream);
-        bin.resetBytesRead();
-        
         // Read an object
         try { 
-            result = sin.readObject();
+            result = stream.readObject();
         } catch (Exception e) {
             succes = false;
         } finally {
             // Return the stream to the queue (if necessary) 
+            lastBytesRead = stream.bytesRead();
+            totalData += lastBytesRead;
             inputStreams.returnStream(stream);     
-            totalData += bin.bytesRead();
         }
 
         if (succes) { 
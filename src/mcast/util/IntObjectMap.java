@@ -0,0 +1,160 @@
+package mcast.util;
+
+/**
+ * A map from int keys to objects, using open addressing with linear probing.
+ * Unlike a HashMap<Integer, Object>, it does not box the keys or allocate an
+ * entry per mapping. Null values are not allowed.
+ */
+public class IntObjectMap {
+
+    private static final int DEFAULT_SIZE = 64;
+
+    private int [] keys;
+    private Object [] values;
+
+    private int mask;
+    private int size = 0;
+
+    public IntObjectMap() {
+        this(DEFAULT_SIZE);
+    }
+
+    public IntObjectMap(int size) {
+        int capacity = DEFAULT_SIZE;
+
+        while (capacity < 2*size) {
+            capacity *= 2;
+        }
+
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity-1;
+    }
+
+    private static int hash(int key) {
+        // Spread consecutive keys (the common case) over the table.
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int find(int key) {
+        int index = hash(key) & mask;
+
+        while (values[index] != null && keys[index] != key) {
+            index = (index + 1) & mask;
+        }
+
+        return index;
+    }
+
+    private void resize() {
+        int [] oldKeys = keys;
+        Object [] oldValues = values;
+
+        keys = new int[2*oldKeys.length];
+        values = new Object[2*oldValues.length];
+        mask = keys.length-1;
+
+        for (int i=0;i<oldKeys.length;i++) {
+            if (oldValues[i] != null) {
+                int index = find(oldKeys[i]);
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Object get(int key) {
+        return values[find(key)];
+    }
+
+    /**
+     * Adds a mapping, and returns the value previously mapped to the key (if
+     * any).
+     */
+    public Object put(int key, Object value) {
+
+        if (value == null) {
+            throw new NullPointerException("IntObjectMap does not take null");
+        }
+
+        int index = find(key);
+        Object old = values[index];
+
+        keys[index] = key;
+        values[index] = value;
+
+        if (old == null && ++size > (mask+1) / 2) {
+            resize();
+        }
+
+        return old;
+    }
+
+    /**
+     * Removes a mapping, and returns the value that was mapped to the key (if
+     * any).
+     */
+    public Object remove(int key) {
+
+        int index = find(key);
+        Object old = values[index];
+
+        if (old == null) {
+            return null;
+        }
+
+        values[index] = null;
+        size--;
+
+        // Move back the entries that follow in the same cluster, so that a
+        // lookup never stops at the hole we just made.
+        int next = (index + 1) & mask;
+
+        while (values[next] != null) {
+            int home = hash(keys[next]) & mask;
+
+            // Move the entry if its home is not between the hole and itself.
+            if (((next - home) & mask) >= ((next - index) & mask)) {
+                keys[index] = keys[next];
+                values[index] = values[next];
+                values[next] = null;
+                index = next;
+            }
+
+            next = (next + 1) & mask;
+        }
+
+        return old;
+    }
+
+    /**
+     * Returns the number of slots in the table. Together with key(slot) and
+     * value(slot) this can be used to iterate over the mappings.
+     */
+    public int capacity() {
+        return values.length;
+    }
+
+    public int key(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * Returns the value in the given slot, or null if it is empty.
+     */
+    public Object value(int slot) {
+        return values[slot];
+    }
+
+    public void clear() {
+        for (int i=0;i<values.length;i++) {
+            values[i] = null;
+        }
+        size = 0;
+    }
+}
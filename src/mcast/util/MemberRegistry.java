@@ -0,0 +1,201 @@
+package mcast.util;
+
+import ibis.ipl.IbisIdentifier;
+
+/**
+ * Maps the members of a pool to small integer IDs and back.
+ *
+ * The identifiers are looked up by their hash code in an IntObjectMap, with a
+ * short chain for the (rare) identifiers that share one. The reverse mapping
+ * is an array indexed by ID.
+ *
+ * The IDs of members that leave are reused, so the IDs stay below the largest
+ * number of members present at the same time, no matter how many have joined
+ * over the lifetime of the pool. Freed IDs are handed out oldest first, so an
+ * ID is reused as late as possible. Since all members see the joins and leaves
+ * in the same order, they all assign the same IDs.
+ */
+public class MemberRegistry {
+
+    private static final int DEFAULT_SIZE = 64;
+
+    private static final class Entry {
+
+        final IbisIdentifier ibis;
+        final int id;
+
+        // The next entry with the same hash code.
+        Entry next;
+
+        Entry(IbisIdentifier ibis, int id, Entry next) {
+            this.ibis = ibis;
+            this.id = id;
+            this.next = next;
+        }
+    }
+
+    // The entries by hash code of the identifier.
+    private final IntObjectMap entries = new IntObjectMap();
+    private int size = 0;
+
+    // The members by ID, and the number of IDs handed out so far.
+    private IbisIdentifier [] members = new IbisIdentifier[DEFAULT_SIZE];
+    private int limit = 0;
+
+    // The freed IDs, as a FIFO queue.
+    private int [] free = new int[DEFAULT_SIZE];
+    private int freeHead = 0;
+    private int freeCount = 0;
+
+    private Entry find(IbisIdentifier ibis) {
+
+        Entry e = (Entry) entries.get(ibis.hashCode());
+
+        while (e != null && !e.ibis.equals(ibis)) {
+            e = e.next;
+        }
+
+        return e;
+    }
+
+    private int newID() {
+
+        if (freeCount > 0) {
+            int id = free[freeHead];
+            freeHead = (freeHead + 1) % free.length;
+            freeCount--;
+            return id;
+        }
+
+        if (limit == members.length) {
+            IbisIdentifier [] tmp = new IbisIdentifier[2*members.length];
+            System.arraycopy(members, 0, tmp, 0, members.length);
+            members = tmp;
+        }
+
+        return limit++;
+    }
+
+    private void freeID(int id) {
+
+        if (freeCount == free.length) {
+            int [] tmp = new int[2*free.length];
+
+            for (int i=0;i<freeCount;i++) {
+                tmp[i] = free[(freeHead + i) % free.length];
+            }
+
+            free = tmp;
+            freeHead = 0;
+        }
+
+        free[(freeHead + freeCount) % free.length] = id;
+        freeCount++;
+    }
+
+    /**
+     * Returns the number of members.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns an upper bound (exclusive) of the IDs in use.
+     */
+    public int limit() {
+        return limit;
+    }
+
+    /**
+     * Returns the ID of the given member, or -1 if it is not known.
+     */
+    public int get(IbisIdentifier ibis) {
+        Entry e = find(ibis);
+        return e == null ? -1 : e.id;
+    }
+
+    /**
+     * Returns the member with the given ID, or null if there is none.
+     */
+    public IbisIdentifier get(int id) {
+        if (id < 0 || id >= limit) {
+            return null;
+        }
+        return members[id];
+    }
+
+    /**
+     * Adds a member, and returns its ID. If the member is already known, its
+     * current ID is returned.
+     */
+    public int add(IbisIdentifier ibis) {
+
+        Entry e = find(ibis);
+
+        if (e != null) {
+            return e.id;
+        }
+
+        int id = newID();
+        int hash = ibis.hashCode();
+
+        entries.put(hash, new Entry(ibis, id, (Entry) entries.get(hash)));
+        members[id] = ibis;
+        size++;
+
+        return id;
+    }
+
+    /**
+     * Removes a member, and returns the ID it had, or -1 if it was not known.
+     * The ID may be handed out again to a member that joins later.
+     */
+    public int remove(IbisIdentifier ibis) {
+
+        int hash = ibis.hashCode();
+
+        Entry prev = null;
+        Entry e = (Entry) entries.get(hash);
+
+        while (e != null && !e.ibis.equals(ibis)) {
+            prev = e;
+            e = e.next;
+        }
+
+        if (e == null) {
+            return -1;
+        }
+
+        if (prev != null) {
+            prev.next = e.next;
+        } else if (e.next != null) {
+            entries.put(hash, e.next);
+        } else {
+            entries.remove(hash);
+        }
+
+        members[e.id] = null;
+        size--;
+        freeID(e.id);
+
+        return e.id;
+    }
+
+    /**
+     * Returns the IDs of all members, in increasing order.
+     */
+    public int [] members() {
+
+        int [] result = new int[size];
+        int count = 0;
+
+        for (int i=0;i<limit && count < size;i++) {
+            if (members[i] != null) {
+                result[count++] = i;
+            }
+        }
+
+        return result;
+    }
+}
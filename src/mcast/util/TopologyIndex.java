@@ -0,0 +1,228 @@
+package mcast.util;
+
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.Location;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Orders destinations the same way as IbisSorter.sort(local, ids), but
+ * without comparing locations on every call.
+ *
+ * The location keys (cluster and host) of each member are computed once,
+ * when it is added. The members are ranked by these keys whenever the
+ * membership has changed. Sorting a set of destinations then simply buckets
+ * them by location, which takes linear time. Destinations at the same
+ * location keep the order they have in the array, like they do in the (stable)
+ * sort of the IbisSorter. The last few orderings are also cached, since the
+ * same destination set is usually used many times.
+ *
+ * Members are identified by a small integer ID (as in LableRoutingMulticast).
+ */
+public class TopologyIndex {
+
+    private static final int CACHE_SIZE = 16;
+
+    private static final class Entry {
+
+        final int id;
+        final Location cluster;
+        final String host;
+
+        Entry(int id, IbisIdentifier ibis) {
+            this.id = id;
+            this.cluster = ibis.location().getParent();
+            this.host = ibis.location().toString();
+        }
+    }
+
+    // Same order as the IbisSorter: by cluster, then by host name.
+    private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+        public int compare(Entry e1, Entry e2) {
+            int result = e1.cluster.compareTo(e2.cluster);
+
+            if (result == 0) {
+                result = e1.host.compareTo(e2.host);
+            }
+
+            return result;
+        }
+    };
+
+    private static final class Key {
+
+        final int local;
+        final int [] ids;
+        final int hash;
+
+        Key(int local, int [] ids) {
+            this.local = local;
+            this.ids = ids;
+            this.hash = 31 * Arrays.hashCode(ids) + local;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) o;
+            return local == other.local && Arrays.equals(ids, other.ids);
+        }
+    }
+
+    private final DynamicObjectArray entries = new DynamicObjectArray();
+    private int members = 0;
+
+    // The rank of each member. Only valid if !changed.
+    private int [] rank = new int[0];
+    private boolean changed = false;
+
+    // The number of destinations at each location (indexed by its first
+    // rank, see below) in the destinations being sorted.
+    private int [] count = new int[0];
+
+    // The first rank of the members with the same location as the member at
+    // each rank.
+    private int [] first = new int[0];
+
+    private final Map<Key, int []> cache
+        = new LinkedHashMap<Key, int []>(CACHE_SIZE, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<Key, int []> e) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+    public synchronized void add(int id, IbisIdentifier ibis) {
+
+        if (entries.get(id) == null) {
+            members++;
+        }
+
+        entries.put(id, new Entry(id, ibis));
+        changed = true;
+    }
+
+    public synchronized void remove(int id) {
+
+        if (id <= entries.last() && entries.get(id) != null) {
+            entries.remove(id);
+            members--;
+            changed = true;
+        }
+    }
+
+    private void rank() {
+
+        Entry [] tmp = new Entry[members];
+        int n = 0;
+
+        for (int i=0;i<=entries.last();i++) {
+            Entry e = (Entry) entries.get(i);
+
+            if (e != null) {
+                tmp[n++] = e;
+            }
+        }
+
+        Arrays.sort(tmp, 0, n, ORDER);
+
+        rank = new int[entries.last()+1];
+        Arrays.fill(rank, -1);
+
+        count = new int[n];
+        first = new int[n];
+
+        for (int i=0;i<n;i++) {
+            rank[tmp[i].id] = i;
+
+            if (i > 0 && ORDER.compare(tmp[i-1], tmp[i]) == 0) {
+                first[i] = first[i-1];
+            } else {
+                first[i] = i;
+            }
+        }
+
+        cache.clear();
+        changed = false;
+    }
+
+    /**
+     * Sorts the destinations so that the ones following 'local' in the
+     * cluster/host order come first, followed by the ones before it.
+     *
+     * @return false (leaving the destinations alone) if some of them, or
+     * local, are unknown
+     */
+    public synchronized boolean sort(int local, int [] ids) {
+
+        if (changed) {
+            rank();
+        }
+
+        Key key = new Key(local, ids.clone());
+        int [] result = cache.get(key);
+
+        if (result != null) {
+            System.arraycopy(result, 0, ids, 0, ids.length);
+            return true;
+        }
+
+        if (local < 0 || local >= rank.length || rank[local] == -1) {
+            return false;
+        }
+
+        for (int i=0;i<ids.length;i++) {
+            if (ids[i] < 0 || ids[i] >= rank.length || rank[ids[i]] == -1) {
+                // Undo the counts we have done so far.
+                for (int j=0;j<i;j++) {
+                    count[first[rank[ids[j]]]] = 0;
+                }
+                return false;
+            }
+
+            count[first[rank[ids[i]]]]++;
+        }
+
+        // Walk the locations, starting at our own, and turn the counts into
+        // the position of the first destination at each location. The
+        // IbisSorter puts local before the others at the same location, so
+        // we do the same.
+        final int n = count.length;
+        final int start = first[rank[local]];
+        int index = 0;
+
+        for (int i=0;i<n;i++) {
+            int r = (start + i) % n;
+
+            if (first[r] == r && count[r] > 0) {
+                int tmp = count[r];
+                count[r] = index;
+                index += tmp;
+            }
+        }
+
+        result = new int[ids.length];
+
+        for (int i=0;i<ids.length;i++) {
+            result[count[first[rank[ids[i]]]]++] = ids[i];
+        }
+
+        for (int i=0;i<ids.length;i++) {
+            count[first[rank[ids[i]]]] = 0;
+        }
+
+        System.arraycopy(result, 0, ids, 0, ids.length);
+        cache.put(key, result);
+        return true;
+    }
+}